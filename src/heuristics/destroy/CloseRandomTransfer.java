@@ -39,8 +39,7 @@ public class CloseRandomTransfer extends DestroyHeuristic {
 			}
 		}
 		
-		s.closedTransfers.add(transfer);
-		s.openTransfers.remove(transfer);
+		s.closeTransfer(transfer);
 		return destroyIds;
 	}
 
@@ -1,13 +1,11 @@
 package heuristics.destroy;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
 
 import problem.Node;
 import problem.Problem;
-import problem.Request;
 import solution.Solution;
 import solution.SolutionRequest;
 
@@ -31,29 +29,12 @@ public class ClusterRemoval extends DestroyHeuristic {
 			root = sr.dropoff.associatedNode;
 			isPickup = false;
 		}
-		List<Node> ordered = new ArrayList<>();
-		for (Request r : problem.requests) {
-			if (r.pickupNode == root || r.dropoffNode == root) {
-				continue;
-			}
-			if (isPickup) {
-				ordered.add(r.pickupNode);
-			} else {
-				ordered.add(r.dropoffNode);
-			}
+		// the other pickups (or dropoffs) ordered by distance to the root, these are precomputed
+		int[] sameType = problem.getSameTypeNeighbours(root);
+		List<Node> ordered = new ArrayList<>(sameType.length);
+		for (int id : sameType) {
+			ordered.add(problem.nodes[id - 1]);
 		}
-		ordered.sort(new Comparator<Node>() {
-			@Override
-			public int compare(Node lhs, Node rhs) {
-				double delta = problem.distanceBetween(lhs, root) - problem.distanceBetween(rhs, root);
-				if (delta < 0) {
-					return -1;
-				} else if (delta > 0) {
-					return 1;
-				}
-				return 0;
-			}
-		});
 		
 		List<Integer> destroyedRequestIds = new ArrayList<>();
 		
@@ -50,19 +50,18 @@ public abstract class DestroyHeuristic {
 	
 	protected boolean removeWithoutTransfer(Solution s, SolutionRequest sr, boolean report) {
 		int numRemoved = 0;
-		for (ListIterator<Route> iter = s.routes.listIterator(); iter.hasNext();) {
-			Route route = iter.next();
-			if (sr.pickup.vehicleId != route.vehicleId) {
+		for (int routeIndex = 0; routeIndex < s.routes.size(); routeIndex++) {
+			if (sr.pickup.vehicleId != s.routes.get(routeIndex).vehicleId) {
 				// wrong route, check next one
 				continue;
 			}
-			if (route.size() == 2) {
+			if (s.routes.get(routeIndex).size() == 2) {
 				// only this request in route, remove full route
-				route.clear();
-				iter.remove();
+				s.removeRoute(routeIndex);
 				numRemoved = 2;
 			} else {
-				// remove the nodes
+				// remove the nodes (the route may be shared with other solutions, so get our own copy)
+				Route route = s.getMutableRoute(routeIndex);
 				RouteNode prev = null;
 				for (ListIterator<RouteNode> iter1 = route.listIterator(); iter1.hasNext(); ) {
 					RouteNode cur = iter1.next();
@@ -86,8 +85,7 @@ public abstract class DestroyHeuristic {
 				}
 				
 			}
-			sr.pickup = null;
-			sr.dropoff = null;
+			s.unassignRequest(sr);
 			if (numRemoved == 2) {
 				return true;
 			} else if (report) {
@@ -102,28 +100,24 @@ public abstract class DestroyHeuristic {
 	protected boolean removeWithTransfer(Solution s, SolutionRequest sr, boolean report) {
 		int numRemoved = 0;
 		int routesDone = 0;
-		for (ListIterator<Route> iter = s.routes.listIterator(); iter.hasNext();) {
-			Route route = iter.next();
-			if (sr.pickup.vehicleId != route.vehicleId && sr.dropoff.vehicleId != route.vehicleId) {
+		for (int routeIndex = 0; routeIndex < s.routes.size(); routeIndex++) {
+			int vehicleId = s.routes.get(routeIndex).vehicleId;
+			if (sr.pickup.vehicleId != vehicleId && sr.dropoff.vehicleId != vehicleId) {
 				// wrong route, check next one
 				continue;
 			}
-			if (route.size() == 2) {
+			if (s.routes.get(routeIndex).size() == 2) {
 				// only this request in route, remove full route
-				route.clear();
-				iter.remove();
+				s.removeRoute(routeIndex--);
 				numRemoved += 2;
 			} else {
-				// remove the nodes
+				// remove the nodes (the route may be shared with other solutions, so get our own copy)
+				Route route = s.getMutableRoute(routeIndex);
 				RouteNode prev = null;
 				for (ListIterator<RouteNode> iter1 = route.listIterator(); iter1.hasNext(); ) {
 					RouteNode cur = iter1.next();
 					if (cur == sr.pickup || cur == sr.dropoff || cur == sr.transferDropoff || cur == sr.transferPickup) {
 						iter1.remove();
-						if (route.size() == 0) {
-							// remove route if it is completely gone
-							iter.remove();
-						}
 						numRemoved++;
 					} else {
 						if (numRemoved > 0 && routesDone == 0 || numRemoved > 2 && routesDone == 1) {
@@ -138,17 +132,18 @@ public abstract class DestroyHeuristic {
 							cur.setNumPas(cur.getNumPas() - 1);
 						}
 					}
-				}	
+				}
+				if (route.size() == 0) {
+					// remove route if it is completely gone
+					s.removeRoute(routeIndex--);
+				}
 			}
 			// break if we are finished with removing all
 			if (++routesDone == 2) {
 				break;
 			}
 		}
-		sr.pickup = null;
-		sr.dropoff = null;
-		sr.transferDropoff = null;
-		sr.transferPickup = null;
+		s.unassignRequest(sr);
 		if (numRemoved == 4 && routesDone == 2) {
 			return true;
 		} else if (report) {
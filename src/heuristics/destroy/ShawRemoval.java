@@ -54,11 +54,14 @@ public class ShawRemoval extends DestroyHeuristic{
 		
 		ArrayList<SolutionRequest> ordered = new ArrayList<>();
 		SolutionRequest root = s.requests.get(rand.nextInt(s.requests.size()));
+		// calculate the relatedness once per request instead of on every comparison
+		double[] relatedness = new double[s.requests.size() + 1];
 		for (SolutionRequest sr : s.requests) {
 			if (sr == root) {
 				continue;
 			}
 			else {
+				relatedness[sr.id] = calcRelatedness(sr, root, s);
 				ordered.add(sr);
 			}
 		}
@@ -66,13 +69,7 @@ public class ShawRemoval extends DestroyHeuristic{
 		ordered.sort(new Comparator<SolutionRequest>() {
 			@Override
 			public int compare(SolutionRequest lhs, SolutionRequest rhs) {
-				double delta = calcRelatedness(lhs, root, s) - calcRelatedness(rhs, root, s);
-				if (delta < 0) {
-					return -1;
-				} else if (delta > 0) {
-					return 1;
-				}
-				return 0;
+				return Double.compare(relatedness[lhs.id], relatedness[rhs.id]);
 			}
 		});
 				
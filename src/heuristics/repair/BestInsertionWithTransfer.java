@@ -3,6 +3,7 @@ package heuristics.repair;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Random;
+import java.util.stream.IntStream;
 
 import org.pmw.tinylog.Logger;
 
@@ -13,6 +14,10 @@ import solution.Solution;
 public class BestInsertionWithTransfer extends RepairHeuristic {
 
 	private static final double CHANCE_OF_OPENING_TRANSFER = 0.7;
+	private static final RouteRequestType[] TYPES = {RouteRequestType.PICKUP_AND_TRANSFER, RouteRequestType.TRANSFER_AND_DROPOFF, RouteRequestType.NO_TRANSFER};
+	
+	// evaluate the three types of insertion in parallel (on the common ForkJoinPool), they only read the solution
+	public static boolean parallelTypes = false;
 	
 	public BestInsertionWithTransfer(Problem problem, Random r) {
 		super(problem, r);
@@ -29,9 +34,12 @@ public class BestInsertionWithTransfer extends RepairHeuristic {
 		
 		for (ListIterator<Integer> iter = requestIdsToRepair.listIterator(); iter.hasNext(); ) {
 			int reqId = iter.next();
-			RouteRequest[] pickupFirst = getBestFullInsertion(s, reqId, RouteRequestType.PICKUP_AND_TRANSFER);
-			RouteRequest[] dropoffFirst = getBestFullInsertion(s, reqId, RouteRequestType.TRANSFER_AND_DROPOFF);
-			RouteRequest[] noTransfer = getBestFullInsertion(s, reqId, RouteRequestType.NO_TRANSFER);
+			RouteRequest[][] insertions = new RouteRequest[TYPES.length][];
+			IntStream types = IntStream.range(0, TYPES.length);
+			(parallelTypes ? types.parallel() : types).forEach(i -> insertions[i] = getBestFullInsertion(s, reqId, TYPES[i]));
+			RouteRequest[] pickupFirst = insertions[0];
+			RouteRequest[] dropoffFirst = insertions[1];
+			RouteRequest[] noTransfer = insertions[2];
 			double[] cost = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
 			if (pickupFirst == null && dropoffFirst == null && noTransfer == null) {
 				return false;
@@ -77,8 +85,8 @@ public class BestInsertionWithTransfer extends RepairHeuristic {
 	@SuppressWarnings("unused")
 	private Node openRandomTransfer(Solution s) {
 		int index = r.nextInt(s.closedTransfers.size());	
-		Node transfer = s.closedTransfers.remove(index);
-		s.openTransfers.add(transfer);
+		Node transfer = s.closedTransfers.get(index);
+		s.openTransfer(transfer);
 		Logger.info("Opening transfer facility {}", transfer.id);
 		return transfer;
 	}
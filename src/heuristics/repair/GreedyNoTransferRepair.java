@@ -3,7 +3,10 @@
  */
 package heuristics.repair;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
 
 import org.pmw.tinylog.Logger;
@@ -27,31 +30,45 @@ public class GreedyNoTransferRepair extends RepairHeuristic {
 	public boolean repair(Solution s, List<Integer> requestIdsToRepair) {
 		Logger.debug("Starting reparation using greedy no transfer insert. Trying to repair {} requests", requestIdsToRepair.size());
 		
+		// the best insertion of every request, ties are broken by the order of the requests to repair
+		Map<Integer, RouteRequest> bestInsert = new HashMap<>();
+		Map<Integer, Integer> order = new HashMap<>();
+		PriorityQueue<RouteRequest> queue = new PriorityQueue<>((left, right) -> {
+			int cmp = Double.compare(left.insertionCost, right.insertionCost);
+			return cmp != 0 ? cmp : Integer.compare(order.get(left.requestId), order.get(right.requestId));
+		});
+		for (int i = 0; i < requestIdsToRepair.size(); i++) {
+			int requestId = requestIdsToRepair.get(i);
+			order.put(requestId, i);
+			updateBestInsertion(s, requestId, -1, bestInsert, queue);
+		}
+		
 		while (requestIdsToRepair.size() > 0) {
-			RouteRequest[] bestInsert = new RouteRequest[requestIdsToRepair.size()];
-			double[] costs = new double[requestIdsToRepair.size()];
-			for (int i = 0; i < requestIdsToRepair.size(); i++) {
-				int requestId = requestIdsToRepair.get(i);
-				bestInsert[i] = getBestFullInsertion(s, requestId, RouteRequestType.NO_TRANSFER)[1];
-				costs[i] = bestInsert[i] == null ? Double.POSITIVE_INFINITY : bestInsert[i].insertionCost;
+			// entries that have been replaced by a newer evaluation are skipped
+			RouteRequest best = queue.poll();
+			while (best != null && bestInsert.get(best.requestId) != best) {
+				best = queue.poll();
 			}
-			
-			int bestIndex = 0;
-			double bestCost = costs[0];
-			for (int i = 1; i < requestIdsToRepair.size(); i++) {
-				if (costs[i] < bestCost) {
-					bestIndex = i;
-					bestCost = costs[i];
-				}
+			if (best == null) {
+				return false;
 			}
+			Logger.debug("Inserted request {000} in route {}", best.requestId, best.routeIndex);
+			requestIdsToRepair.remove(Integer.valueOf(best.requestId));
+			bestInsert.remove(best.requestId);
+			s.setRoute(best.routeIndex, best.route);
+			s.calcTightWindows();
 			
-			if (bestCost == Double.POSITIVE_INFINITY) {
-				return false;
-			} else {
-				Logger.debug("Inserted request {000} in route {}", requestIdsToRepair.get(bestIndex), bestInsert[bestIndex].routeIndex);
-				requestIdsToRepair.remove(bestIndex);
-				s.setRoute(bestInsert[bestIndex].routeIndex, bestInsert[bestIndex].route);
-				s.calcTightWindows();
+			// only insertions into the changed route have to be evaluated again, unless it is coupled to other routes 
+			// (whose times may have changed as well) or it was the best route of a request
+			int changedIndex = best.routeIndex == -1 ? s.routes.size() - 1 : best.routeIndex;
+			boolean isCoupled = s.routes.get(changedIndex).hasTransfer();
+			for (int requestId : requestIdsToRepair) {
+				RouteRequest current = bestInsert.get(requestId);
+				if (isCoupled || (current != null && current.routeIndex == changedIndex)) {
+					updateBestInsertion(s, requestId, -1, bestInsert, queue);
+				} else {
+					updateBestInsertion(s, requestId, changedIndex, bestInsert, queue);
+				}
 			}
 		}
 		return true;
@@ -71,6 +88,24 @@ public class GreedyNoTransferRepair extends RepairHeuristic {
 //		}
 //		return true;
 	}
+	
+	/*
+	 * Evaluates the insertion of a request, either into all routes (onlyRouteIndex == -1) or a single route. The
+	 * result replaces the best insertion of the request if it is better or if all routes were evaluated.
+	 */
+	private void updateBestInsertion(Solution s, int requestId, int onlyRouteIndex, Map<Integer, RouteRequest> bestInsert, PriorityQueue<RouteRequest> queue) {
+		RouteRequest[] insertion = getBestFullInsertion(s, requestId, RouteRequestType.NO_TRANSFER, onlyRouteIndex);
+		RouteRequest current = bestInsert.get(requestId);
+		if (onlyRouteIndex == -1) {
+			bestInsert.remove(requestId);
+		} else if (insertion == null || (current != null && current.insertionCost <= insertion[1].insertionCost)) {
+			return;
+		}
+		if (insertion != null) {
+			bestInsert.put(requestId, insertion[1]);
+			queue.add(insertion[1]);
+		}
+	}
 		
 
 //	private RouteRequest getBestNoTransferInsertion(Solution s, List<Integer> requestIdsToRepair) {	
@@ -0,0 +1,77 @@
+package heuristics.repair;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The best insertions of requests (without transfer) into routes that are not coupled to other routes, by request id
+ * and route version. Routes with the same version are equal, so an entry is valid until the route changes, after
+ * which it is not looked up anymore and eventually evicted.
+ *
+ * The cache is shared by the repair heuristics of a search, which may use it from multiple threads.
+ */
+public class InsertionCache {
+
+	private static final int MAX_SIZE = 100000;
+
+	@SuppressWarnings("serial")
+	private final Map<Long, CachedInsertion> entries = new LinkedHashMap<Long, CachedInsertion>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, CachedInsertion> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * Returns the entry if it tells whether there is an insertion that costs at most best, i.e. if it is the best
+	 * insertion or if best is not larger than its bound.
+	 *
+	 * @return the entry, or null if the route has to be searched
+	 */
+	synchronized CachedInsertion get(long key, double best) {
+		CachedInsertion entry = entries.get(key);
+		if (entry != null && (entry.isInsertion() || best <= entry.cost)) {
+			hits++;
+			return entry;
+		}
+		misses++;
+		return null;
+	}
+
+	synchronized void put(long key, CachedInsertion entry) {
+		entries.put(key, entry);
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/*
+	 * The locations and starting times of the best insertion into a route. If the locations are -1, there is no
+	 * feasible insertion that costs at most cost (which is infinite if there is no feasible insertion at all).
+	 */
+	static class CachedInsertion {
+
+		final int pickupLoc, dropoffLoc;
+		final double cost;
+		final double pickupStart, dropoffStart;
+
+		CachedInsertion(int pickupLoc, int dropoffLoc, double cost, double pickupStart, double dropoffStart) {
+			this.pickupLoc = pickupLoc;
+			this.dropoffLoc = dropoffLoc;
+			this.cost = cost;
+			this.pickupStart = pickupStart;
+			this.dropoffStart = dropoffStart;
+		}
+
+		boolean isInsertion() {
+			return pickupLoc >= 0;
+		}
+	}
+}
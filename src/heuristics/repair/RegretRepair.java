@@ -0,0 +1,120 @@
+package heuristics.repair;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.pmw.tinylog.Logger;
+
+import problem.Problem;
+import solution.Solution;
+
+/**
+ * Regret-k insertion without transfers (Ropke & Pisinger 2006). In every step, the request that loses the most by
+ * not being inserted in its best route now is inserted, i.e. the request with the largest sum of differences between
+ * its best insertion and its k - 1 next best insertions (into different routes). Requests with fewer than k feasible
+ * routes go first.
+ *
+ * The best insertion of every request into every route is kept in a matrix, of which only the column of the changed
+ * route has to be evaluated again after an insertion (unless the route is coupled to other routes by transfers).
+ */
+public class RegretRepair extends RepairHeuristic {
+
+	private final int k;
+
+	public RegretRepair(Problem problem, Random r, int k) {
+		super(problem, r);
+		this.k = k;
+	}
+
+	@Override
+	public boolean repair(Solution s, List<Integer> requestIdsToRepair) {
+		Logger.debug("Starting reparation using regret-{} insert. Trying to repair {} requests", k, requestIdsToRepair.size());
+
+		// the best insertion of every request per route, the last element is the insertion as a new route
+		Map<Integer, RouteRequest[]> insertions = new HashMap<>();
+		for (int requestId : requestIdsToRepair) {
+			insertions.put(requestId, getBestInsertionPerRoute(s, requestId));
+		}
+
+		while (requestIdsToRepair.size() > 0) {
+			RouteRequest best = selectMaxRegret(requestIdsToRepair, insertions);
+			if (best == null) {
+				Logger.debug("Unable to insert more requests, aborting.");
+				return false;
+			}
+			Logger.debug("Inserted request {000} in route {}", best.requestId, best.routeIndex);
+			requestIdsToRepair.remove(Integer.valueOf(best.requestId));
+			insertions.remove(best.requestId);
+			s.setRoute(best.routeIndex, best.route);
+			s.calcTightWindows();
+
+			// update the matrix, if a new route was created it gets its own column before the new route column
+			int numRoutes = s.routes.size();
+			int changedIndex = best.routeIndex == -1 ? numRoutes - 1 : best.routeIndex;
+			boolean isCoupled = s.routes.get(changedIndex).hasTransfer();
+			for (int requestId : requestIdsToRepair) {
+				if (isCoupled) {
+					insertions.put(requestId, getBestInsertionPerRoute(s, requestId));
+					continue;
+				}
+				RouteRequest[] perRoute = insertions.get(requestId);
+				if (perRoute.length < numRoutes + 1) {
+					perRoute = Arrays.copyOf(perRoute, numRoutes + 1);
+					perRoute[numRoutes] = perRoute[numRoutes - 1];
+					insertions.put(requestId, perRoute);
+				}
+				RouteRequest[] insertion = getBestFullInsertion(s, requestId, RouteRequestType.NO_TRANSFER, changedIndex);
+				perRoute[changedIndex] = insertion == null ? null : insertion[1];
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the best insertion of the request with the largest regret, or null if no request can be inserted. Ties
+	 * are broken by the cost of the best insertion and then by the order of the requests to repair.
+	 */
+	private RouteRequest selectMaxRegret(List<Integer> requestIds, Map<Integer, RouteRequest[]> insertions) {
+		RouteRequest best = null;
+		int bestNumOptions = 0;
+		double bestRegret = 0;
+		double[] costs = null;
+		for (int requestId : requestIds) {
+			RouteRequest[] perRoute = insertions.get(requestId);
+			if (costs == null || costs.length < perRoute.length) {
+				costs = new double[perRoute.length];
+			}
+			RouteRequest cheapest = null;
+			int numOptions = 0;
+			for (RouteRequest rr : perRoute) {
+				if (rr != null) {
+					costs[numOptions++] = rr.insertionCost;
+					if (cheapest == null || rr.insertionCost < cheapest.insertionCost) {
+						cheapest = rr;
+					}
+				}
+			}
+			if (numOptions == 0) {
+				continue;
+			}
+			Arrays.sort(costs, 0, numOptions);
+			double regret = 0;
+			for (int h = 1; h < Math.min(k, numOptions); h++) {
+				regret += costs[h] - costs[0];
+			}
+			// a request with fewer than k options has an infinite regret, the fewer options the larger
+			numOptions = Math.min(k, numOptions);
+			if (best == null || numOptions < bestNumOptions
+					|| (numOptions == bestNumOptions && (regret > bestRegret
+							|| (regret == bestRegret && cheapest.insertionCost < best.insertionCost)))) {
+				best = cheapest;
+				bestNumOptions = numOptions;
+				bestRegret = regret;
+			}
+		}
+		return best;
+	}
+}
@@ -9,7 +9,9 @@ import org.pmw.tinylog.Logger;
 
 import heuristics.destroy.DestroyHeuristic;
 import problem.Problem;
+import solution.Route;
 import solution.Solution;
+import solution.SolutionRequest;
 
 public class TransferFirst extends RepairHeuristic {
 
@@ -70,18 +72,22 @@ public class TransferFirst extends RepairHeuristic {
 		// TODO iteratively remove
 		for (int i = 0; i < requestIdsToRepair.size(); i++) {
 			double oldCost = insertionCosts.get(i);
-			if (oldCost < 0) {
+			SolutionRequest sr = s.requests.get(requestIdsToRepair.get(i) - 1);
+			if (oldCost < 0 || !sr.hasTransfer()) {
 				// does not use a transfer
 				continue;
 			}
 			else {
 				int id = requestIdsToRepair.get(i);
+				// what we save by removing the request from its two routes, only a cheaper insertion is of interest
+				double removalGain = getRemovalGain(s, sr);
+				// the copy shares all routes except the two that the request is removed from
 				Solution copy = s.copy();
 				dh.destroySpecific(copy, id, false); 
-				RouteRequest[] noTransfer = getBestFullInsertion(copy, id, RouteRequestType.NO_TRANSFER);
-				if (noTransfer != null && noTransfer[1].insertionCost < oldCost) {
+				RouteRequest noTransfer = getBestNoTransferInsertion(copy, id, removalGain);
+				if (noTransfer != null) {
 					dh.destroySpecific(s, id, false);
-					s.setRoute(noTransfer[1].routeIndex, noTransfer[1].route);
+					s.setRoute(noTransfer.routeIndex, noTransfer.route);
 					s.calcTightWindows();
 				}
 			}
@@ -89,5 +95,16 @@ public class TransferFirst extends RepairHeuristic {
 		removeUselessTransfers(s);
 		return true;
 	}
+	
+	// the decrease in cost of the (two) routes that serve the request if it is removed
+	private double getRemovalGain(Solution s, SolutionRequest sr) {
+		double gain = 0;
+		for (Route route : s.routes) {
+			if (route.vehicleId == sr.pickup.vehicleId || route.vehicleId == sr.dropoff.vehicleId) {
+				gain += route.getCost(s.p) - route.getCostWithout(s.p, sr.id);
+			}
+		}
+		return gain;
+	}
 
 }
@@ -10,7 +10,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
 
@@ -22,6 +21,8 @@ import heuristics.destroy.DestroyHeuristic;
 import heuristics.destroy.RandomDestroy;
 import heuristics.destroy.ShawRemoval;
 import heuristics.repair.GreedyNoTransferRepair;
+import heuristics.repair.InsertionCache;
+import heuristics.repair.RegretRepair;
 import heuristics.repair.RepairHeuristic;
 import heuristics.repair.TransferFirst;
 import heuristics.repair.BestInsertionWithTransfer;
@@ -36,33 +37,45 @@ public class ALNS implements Runnable {
 	
 	// ALNS settings
 	private static final double ETA = 0.025; // noise in objec. function multiplier
-	private static final int DEFAULT_MAX_IT = 1000;
+	static final int DEFAULT_MAX_IT = 1000;
 	private double coolingRate = 0.99975; // will be recalculated
 	private static final double W = 0.05; // a new solution will initially be accepted with probability 50% if it is this much worse than the old 
 	private double temp;
+	private double iterationTemp; // the temperature if the search cools down by the iterations only
+	private double startTemp;
+	private double endTempRatio; // the temperature at the end of the search relative to the start
 	
 	private int MAX_IT = 1000;
+	private long timeLimit = -1; // ms, the search stops after this time and cools down by the elapsed time (if >= 0)
 	
 	// Config settings
 	private static final int NUM_DESTROY_HEURISTICS = 4;
-	private static final int NUM_REPAIR_HEURISTICS = 3;
-	private static final int MAX_NUM_ACCEPTED_SOLUTIONS = 50; // maximum number of prev accepted solutions to store
+	private static final int NUM_REPAIR_HEURISTICS = 5;
 	
 	private static final double SMOOTHING_FACTOR = 0.01;
 	
 	private static final int ITERATIONS_BEFORE_FORCED_CHANGE = 25;
+	private static final int ITERATIONS_BEFORE_RESTART = ITERATIONS_BEFORE_FORCED_CHANGE; // instead of a big destruction, when cooperating
 	
 	private Problem p;
-	private List<Solution> acceptedSolutions = new LinkedList<>();
+	// shared with the other searches on the same instance, if they cooperate
+	private ElitePool elitePool = null;
+	private SharedWeights sharedWeights = null;
 	
 	private Random rand;
 	private long seed = -1;
+	private int searchIndex = -1; // the index of this search if it is one of multiple searches on the same instance
+	private int iterations = 0;
+	private long startTime = 0;
+	private long runtime = 0; // ms
 	
 	private Solution currentSol;
 	private Solution bestSol;
 	
 	DestroyHeuristic[] destroyHeuristics = new DestroyHeuristic[NUM_DESTROY_HEURISTICS];
 	RepairHeuristic[] repairHeuristics = new RepairHeuristic[NUM_REPAIR_HEURISTICS];
+	// the best insertions into routes, shared by the repair heuristics
+	InsertionCache insertionCache = new InsertionCache();
 	
 	int[] segmentPointsDestroy = new int[NUM_DESTROY_HEURISTICS];
 	int[] segmentPointsRepair = new int[NUM_REPAIR_HEURISTICS];
@@ -82,27 +95,65 @@ public class ALNS implements Runnable {
 	}
 	
 	public ALNS(Problem p, int it) {
+		this(p, it, System.currentTimeMillis(), -1);
+	}
+	
+	/**
+	 * Creates one of multiple independent searches on the same instance. Such a search does not export its
+	 * solutions and writes its costs to a separate file.
+	 * 
+	 * @param p the problem instance, which is only read
+	 * @param it the number of iterations
+	 * @param seed the seed of the random generator
+	 * @param searchIndex the index of the search, or -1 if it is the only search on this instance
+	 */
+	public ALNS(Problem p, int it, long seed, int searchIndex) {
 		this.MAX_IT = it;
+		this.searchIndex = searchIndex;
 		this.p = p;
 		this.currentSol = new Solution(p);
 		this.currentSol.createInitialSolution();
-		this.bestSol = this.currentSol;
-		this.acceptedSolutions.add(currentSol);
+		this.bestSol = this.currentSol.copy();
 //		this.seed = 1554481654455L;
-		this.seed = System.currentTimeMillis(); // to allow printing
+		this.seed = seed; // to allow printing
 		
 		
 		this.rand = new Random(this.seed);
 		
 		double old = currentSol.getCost();
 		this.temp = - W * old / Math.log(0.5);
-		this.coolingRate = Math.pow(1/old, 1.0/MAX_IT);
+		this.startTemp = this.temp;
+		this.iterationTemp = this.temp;
+		this.endTempRatio = 1/old;
+		this.coolingRate = Math.pow(endTempRatio, 1.0/MAX_IT);
 		
 		this.writeNewBestSolution(0, this.currentSol, true);
 		
 		this.initHeuristics();
 	}
 	
+	/**
+	 * Limits the running time of the search, it stops at whichever comes first of the time limit and the number of 
+	 * iterations. The temperature then follows the elapsed time or the iterations, whichever is further along, so it 
+	 * reaches the same final temperature when the search ends. The best solution is exported whenever it improves, so it is available
+	 * when the time runs out.
+	 * 
+	 * @param timeLimit the time limit in ms, or -1 for no limit
+	 */
+	public void setTimeLimit(long timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+	
+	/**
+	 * Lets this search cooperate with other searches on the same instance: improving solutions are published to the
+	 * pool and the search continues from a better pool member when it stagnates. The heuristic weights are shared too.
+	 * Only for searches that were created with a search index.
+	 */
+	public void cooperate(ElitePool elitePool, SharedWeights sharedWeights) {
+		this.elitePool = elitePool;
+		this.sharedWeights = sharedWeights;
+	}
+	
 	private void initHeuristics() {
 		// destroy
 		DestroyHeuristic random = new RandomDestroy(p, rand);
@@ -121,6 +172,13 @@ public class ALNS implements Runnable {
 		repairHeuristics[1] = bestInsertionWithTransfer;
 		RepairHeuristic TransferFirst = new TransferFirst(p, rand, random);
 		repairHeuristics[2] = TransferFirst;
+		RepairHeuristic regret2 = new RegretRepair(p, rand, 2);
+		repairHeuristics[3] = regret2;
+		RepairHeuristic regret3 = new RegretRepair(p, rand, 3);
+		repairHeuristics[4] = regret3;
+		for (RepairHeuristic repair : repairHeuristics) {
+			repair.setInsertionCache(insertionCache);
+		}
 		
 		
 		// weights
@@ -205,9 +263,19 @@ public class ALNS implements Runnable {
 	}
 
 	private double nextTemp() {
-		temp = coolingRate * temp;
+		iterationTemp = coolingRate * iterationTemp;
+		temp = iterationTemp;
+		if (timeLimit > 0) {
+			// cool down by the time if the time limit will end the search before the iterations do
+			double progress = Math.min(1, (double) (System.currentTimeMillis() - startTime) / timeLimit);
+			temp = Math.min(temp, startTemp * Math.pow(endTempRatio, progress));
+		}
 		return temp;
 	}
+	
+	private boolean isOutOfTime() {
+		return timeLimit >= 0 && System.currentTimeMillis() - startTime >= timeLimit;
+	}
 
 	@Override
 	public void run() {
@@ -217,10 +285,18 @@ public class ALNS implements Runnable {
 		double currentCost = Double.POSITIVE_INFINITY;
 		double bestCost = Double.POSITIVE_INFINITY;
 		long start = System.currentTimeMillis();
+		startTime = start;
 		
 		int iterationsWithoutImprovement = 0;
+		if (elitePool != null) {
+			elitePool.offer(bestSol);
+		}
 		int i = 1;
 		for (; i <= MAX_IT; i++) {
+			if (isOutOfTime()) {
+				Logger.info("Problem instance {}: Time limit of {}s reached. Aborting..", p.index, timeLimit / 1000);
+				break;
+			}
 			Logger.debug("Problem instance {}: ITERATION {}", p.index, i);
 			if (i % 10 == 0) {
 				updateWeights();
@@ -230,6 +306,21 @@ public class ALNS implements Runnable {
 //				Logger.info("Current iteration: {}", i);
 //			}
 			
+			// when stagnating, continue from a better solution that was found by one of the other searches
+			if (elitePool != null && iterationsWithoutImprovement > ITERATIONS_BEFORE_RESTART) {
+				Solution elite = elitePool.getRandom(rand);
+				if (elite != null && elite.getCost() < currentCost - 1e-6) {
+					Logger.debug("Problem instance {}: Restarting from an elite solution. Cost: {00.00}", p.index, elite.getCost());
+					currentSol = elite.copy();
+					currentCost = currentSol.getCost();
+					if (currentCost < bestCost) {
+						bestSol = elite;
+						bestCost = currentCost;
+					}
+					iterationsWithoutImprovement = 0;
+				}
+			}
+			
 			// select heuristic
 			int destroyId = selectDestroy();
 			int repairId = selectRepair();
@@ -241,7 +332,9 @@ public class ALNS implements Runnable {
 			int objectiveNoiseId = selectObjectiveNoise();
 			segmentNumUsedObjectiveNoise[objectiveNoiseId]++;
 			
-			Solution copy = currentSol.copy(); // never modify currentSol
+			// modify currentSol in place, rejected changes are rolled back
+			Solution candidate = currentSol;
+			candidate.beginJournal();
 			
 			List<Integer> destroyed = null;
 			
@@ -251,29 +344,31 @@ public class ALNS implements Runnable {
 			} else if (iterationsWithoutImprovement > ITERATIONS_BEFORE_FORCED_CHANGE) {
 				double factor = (double) iterationsWithoutImprovement / (double) ITERATIONS_BEFORE_FORCED_CHANGE + 1;
 				Logger.info("Doing big destruction. Factor: {00.00}", factor);
-				destroyed = destroy.destroy(copy, rand.nextInt((int) Math.round(p.numRequests * 0.05)) + (int)Math.round(p.numRequests * factor * 0.05));
+				destroyed = destroy.destroy(candidate, rand.nextInt((int) Math.round(p.numRequests * 0.05)) + (int)Math.round(p.numRequests * factor * 0.05));
 			} else {
-				destroyed = destroy.destroy(copy, rand.nextInt((int)Math.round(p.numRequests * 0.05 + 1))); // this always works
+				destroyed = destroy.destroy(candidate, rand.nextInt((int)Math.round(p.numRequests * 0.05 + 1))); // this always works
 			}
 			
-			copy.calcTightWindows();
+			candidate.calcTightWindows();
 			Logger.debug("Problem instance {}: Finished destroying the solution.", p.index);
 
-			if (!repair.repair(copy, destroyed)) {
+			if (!repair.repair(candidate, destroyed)) {
 				// could not repair
 				Logger.debug("Problem instance {}: {} yielded no valid solution. Going to next iteration.", p.index, repair);
 				Logger.debug("Problem instance {}: Current cost: {00.00}. Best cost: {00.00}", p.index, currentCost, bestCost);
+				candidate.rollbackJournal();
 				nextTemp();
 				continue;
 			}
 			
-			if (!copy.isFeasibleVerify(false) || copy.hasOrphanRouteNodes()) {
+			if (!candidate.isFeasibleVerify(false) || candidate.hasOrphanRouteNodes()) {
 				Logger.warn("Problem instance {}: Found an invalid solution!", p.index);
+				candidate.rollbackJournal();
 				break;
 			}
 			
 			// we have a repaired solution
-			double newCost = copy.getCost();
+			double newCost = candidate.getCost();
 			double adjustedCost = newCost;
 			
 			if (objectiveNoiseId == 1) {
@@ -294,38 +389,46 @@ public class ALNS implements Runnable {
 				}
 				// update new solution
 				currentCost = newCost;
-				currentSol = copy;
-				acceptedSolutions.add(copy);
-				if (acceptedSolutions.size() > MAX_NUM_ACCEPTED_SOLUTIONS) {
-					acceptedSolutions.remove(0);
-				}
+				candidate.commitJournal();
+				currentSol = candidate;
 				iterationsWithoutImprovement = 0;
 				
 				writeNewBestSolution(i, currentSol, false);
 				
-//				copy.logSolution();
+//				candidate.logSolution();
 				
 				if (newCost < bestCost) {
-					bestSol = copy;
+					bestSol = candidate.copy(); // snapshot, currentSol keeps changing
+
 					bestCost = newCost;
 					segmentPointsDestroy[destroyId] += 13; //total: +33
 					segmentPointsRepair[repairId] += 13;
 					segmentPointsObjectiveNoise[objectiveNoiseId] += 13;
 					Logger.debug("Problem instance {}: New best solution. Cost: {00.00}", p.index, bestCost);
-					try {
-						bestSol.exportSolution(false);
-					} catch (FileNotFoundException e) {
-						Logger.error(e);
-						//e.printStackTrace();
+					if (elitePool != null) {
+						elitePool.offer(bestSol);
 					}
+					exportBestSolution();
 				}
 			} else {
 				Logger.debug("Problem instance {}: Repaired solution was not accepted.", p.index);
 				Logger.debug("Problem instance {}: New cost: {00.00}. Current cost: {00.00}. Best cost: {00.00}", p.index, newCost, currentCost, bestCost);
+				candidate.rollbackJournal();
 				iterationsWithoutImprovement++;
 			}
 		}
+		iterations = i;
+		runtime = System.currentTimeMillis() - start;
 		Logger.info("Problem instance {}. Best solution cost: {00.00} in {} iterations", this.p.index, bestCost, i);
+		Logger.info("Problem instance {}. Insertion cache: {} hits, {} misses", this.p.index, insertionCache.getHits(), insertionCache.getMisses());
+		exportBestSolution();
+	}
+	
+	// only the best of multiple searches is exported (by the runner)
+	private void exportBestSolution() {
+		if (this.searchIndex >= 0) {
+			return;
+		}
 		try {
 			bestSol.exportSolution(false);
 		} catch (FileNotFoundException e) {
@@ -333,6 +436,22 @@ public class ALNS implements Runnable {
 			//e.printStackTrace();
 		}
 	}
+	
+	public Solution getBestSolution() {
+		return bestSol;
+	}
+	
+	public long getSeed() {
+		return seed;
+	}
+	
+	public int getIterations() {
+		return iterations;
+	}
+	
+	public long getRuntime() {
+		return runtime;
+	}
 
 	private double applyNoise(double newCost) {
 		double n = ETA * (rand.nextDouble() - 0.5) * p.maxCost;
@@ -361,17 +480,28 @@ public class ALNS implements Runnable {
 			segmentPointsObjectiveNoise[i] = 0;
 			segmentNumUsedObjectiveNoise[i] = 0;
 		}
+		if (sharedWeights != null) {
+			sharedWeights.publish(searchIndex, smoothedWeightDestroy, smoothedWeightRepair);
+			sharedWeights.blend(smoothedWeightDestroy, smoothedWeightRepair);
+		}
 		Logger.debug("Problem instance {}: Updated weights. \nRepair {} (). \nDestroy {} (). \nObjective Noise: {} ()", p.index, Arrays.toString(smoothedWeightRepair), Arrays.toString(smoothedWeightDestroy), Arrays.toString(smoothedWeightObjectiveNoise));
 	}
 	
 	private void writeNewBestSolution(int iteration, Solution s, boolean delete) {
-		File file = new File(s.p.index + "_costs.csv");
+		File file = new File(s.p.index + (this.searchIndex >= 0 ? "_" + this.searchIndex : "") + "_costs.csv");
 		if (delete) {
 			file.delete();
 		}
 		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file, true)))) {
 			if (delete) {
-				writer.println("it,cur,best,temp,d1,d2,d3,d4,r1,r2,r3,noise1,noise2");
+				writer.print("it,cur,best,temp");
+				for (int i = 1; i <= NUM_DESTROY_HEURISTICS; i++) {
+					writer.print(",d" + i);
+				}
+				for (int i = 1; i <= NUM_REPAIR_HEURISTICS; i++) {
+					writer.print(",r" + i);
+				}
+				writer.println(",noise1,noise2");
 			}
 			writer.print(iteration + "," + s.getCost() + "," + bestSol.getCost() + "," + temp);
 			for (int i = 0; i < smoothedWeightDestroy.length; i++) {
@@ -1,8 +1,9 @@
 package main;
 
-import java.util.ArrayList;
+import java.io.FileNotFoundException;
 import java.util.Date;
-import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.pmw.tinylog.Logger;
 
@@ -10,29 +11,132 @@ import problem.Problem;
 
 public class ALNSRunner extends Thread {
 	
-	private List<Problem> problems = new ArrayList<>();
+	private static final int ELITE_POOL_SIZE = 10;
+
+	private Queue<Problem> problems = new ConcurrentLinkedQueue<>(); // can be shared with other runners
 	private int maxIt = -1;
+	private long timeLimit = -1; // ms per problem, no limit if negative
+	private long deadline = -1; // of the whole batch, no deadline if negative
+	private int numRunners = 1; // that share the queue and the deadline
+	private int numStarts = 1;
+	private boolean cooperative = false;
 	
 	public void setIterations(int iter) {
 		this.maxIt = iter;
 	}
 	
+	public void setTimeLimit(long timeLimit) {
+		this.timeLimit = timeLimit;
+	}
+
+	// the time at which all problems of the batch should be solved, which is divided over the remaining problems
+	public void setDeadline(long deadline, int numRunners) {
+		this.deadline = deadline;
+		this.numRunners = numRunners;
+	}
+
+	// the number of independent searches (with different seeds) that run at the same time on each problem
+	public void setStarts(int numStarts) {
+		this.numStarts = numStarts;
+	}
+
+	// let the searches on the same problem share their best solutions and heuristic weights
+	public void setCooperative(boolean cooperative) {
+		this.cooperative = cooperative;
+	}
+
 	public void assignProblem(Problem p) {
 		problems.add(p);
 	}
 	
+	// the runner takes problems from this queue until it is empty, so runners that share it balance the work
+	public void setQueue(Queue<Problem> problems) {
+		this.problems = problems;
+	}
+
 	@Override
 	public void run() {
 		Logger.info("Started at {}", new Date().toString());
-		for (Problem p : problems) {
+		Problem p;
+		while ((p = problems.poll()) != null) {
+			Logger.info("Problem instance {}: taken from the queue, {} left", p.index, problems.size());
+			long limit = getTimeLimit();
+			if (limit >= 0) {
+				Logger.info("Problem instance {}: time limit {0.0}s", p.index, limit / 1000.0);
+			}
+			if (numStarts > 1) {
+				runMultiStart(p, limit);
+				continue;
+			}
 			ALNS algo;
 			if (maxIt == -1) {
 				algo = new ALNS(p);
 			} else {
 				algo = new ALNS(p, maxIt);
 			}
+			algo.setTimeLimit(limit);
 			algo.run();
 		}
 	}
 	
+	/*
+	 * The time limit of the next problem: its own limit, but at most its share of the time that is left until the
+	 * deadline. This runner still has to solve about one in every numRunners of the problems in the queue.
+	 */
+	private long getTimeLimit() {
+		if (deadline < 0) {
+			return timeLimit;
+		}
+		long remaining = Math.max(0, deadline - System.currentTimeMillis());
+		long share = remaining / (1 + problems.size() / numRunners);
+		return timeLimit < 0 ? share : Math.min(timeLimit, share);
+	}
+
+	/*
+	 * Runs multiple searches on the same problem, each in its own thread with its own solutions and heuristics. Only
+	 * the problem is shared, which is not modified (and the elite pool and weights if they cooperate). The best 
+	 * solution of all searches is exported.
+	 */
+	private void runMultiStart(Problem p, long timeLimit) {
+		long seed = System.currentTimeMillis();
+		ALNS[] searches = new ALNS[numStarts];
+		Thread[] threads = new Thread[numStarts];
+		ElitePool elitePool = new ElitePool(ELITE_POOL_SIZE);
+		SharedWeights sharedWeights = new SharedWeights(numStarts);
+		for (int i = 0; i < numStarts; i++) {
+			searches[i] = new ALNS(p, maxIt == -1 ? ALNS.DEFAULT_MAX_IT : maxIt, seed + i, i);
+			searches[i].setTimeLimit(timeLimit);
+			if (cooperative) {
+				searches[i].cooperate(elitePool, sharedWeights);
+			}
+			threads[i] = new Thread(searches[i], getName() + "-" + p.index + "-" + i);
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Logger.error(e);
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+
+		ALNS best = null;
+		for (int i = 0; i < numStarts; i++) {
+			ALNS search = searches[i];
+			Logger.info("Problem instance {}: search {} (seed {}) found cost {00.00} in {} iterations and {}s", p.index, i, search.getSeed(),
+					search.getBestSolution().getCost(), search.getIterations(), search.getRuntime() / 1000);
+			if (best == null || search.getBestSolution().getCost() < best.getBestSolution().getCost()) {
+				best = search;
+			}
+		}
+		Logger.info("Problem instance {}: best of {} searches is seed {} with cost {00.00}", p.index, numStarts, best.getSeed(), best.getBestSolution().getCost());
+		try {
+			best.getBestSolution().exportSolution(false);
+		} catch (FileNotFoundException e) {
+			Logger.error(e);
+		}
+	}
+
 }
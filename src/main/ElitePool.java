@@ -0,0 +1,81 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import solution.Solution;
+
+/**
+ * The best solutions found by cooperating searches on the same instance. The pool is an immutable array that is
+ * replaced with compare-and-set, so publishing and reading do not block.
+ *
+ * The solutions in the pool are shared by all searches and must not be modified, use {@link Solution#copy()} to
+ * continue from one.
+ */
+public class ElitePool {
+
+	private static final double EPS = 1e-6; // solutions of (almost) equal cost are considered duplicates
+
+	private final int capacity;
+	private final AtomicReference<Entry[]> entries = new AtomicReference<>(new Entry[0]);
+
+	public ElitePool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Adds a solution if it is better than the worst solution in the pool (or the pool is not full yet).
+	 *
+	 * @param s a solution that is not modified anymore
+	 * @return true if the solution was added
+	 */
+	public boolean offer(Solution s) {
+		Entry entry = new Entry(s, s.getCost()); // also calculates the cost of the routes, before others can see them
+		while (true) {
+			Entry[] old = entries.get();
+			if (old.length == capacity && entry.cost >= old[old.length - 1].cost) {
+				return false;
+			}
+			int index = 0;
+			while (index < old.length && old[index].cost < entry.cost) {
+				index++;
+			}
+			if ((index < old.length && old[index].cost - entry.cost < EPS) || (index > 0 && entry.cost - old[index - 1].cost < EPS)) {
+				return false;
+			}
+			Entry[] next = Arrays.copyOf(old, Math.min(old.length + 1, capacity));
+			System.arraycopy(old, index, next, index + 1, next.length - index - 1);
+			next[index] = entry;
+			if (entries.compareAndSet(old, next)) {
+				return true;
+			}
+		}
+	}
+
+	// a random solution of the pool, or null if it is empty
+	public Solution getRandom(Random r) {
+		Entry[] current = entries.get();
+		if (current.length == 0) {
+			return null;
+		}
+		return current[r.nextInt(current.length)].solution;
+	}
+
+	// the best solution of the pool, or null if it is empty
+	public Solution getBest() {
+		Entry[] current = entries.get();
+		return current.length == 0 ? null : current[0].solution;
+	}
+
+	private static class Entry {
+
+		final Solution solution;
+		final double cost;
+
+		Entry(Solution solution, double cost) {
+			this.solution = solution;
+			this.cost = cost;
+		}
+	}
+}
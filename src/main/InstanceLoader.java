@@ -0,0 +1,165 @@
+package main;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.pmw.tinylog.Logger;
+
+/**
+ * Loads problem instances from the CSV, one instance per line starting with its index. The file is scanned once for
+ * the position of every instance, after which an instance is read and parsed without reading the other lines.
+ *
+ * The positions are saved next to the CSV (as <code>FILE_NAME.idx</code>), so later runs do not have to scan the
+ * file at all. The index is rebuilt when the CSV has changed.
+ */
+public class InstanceLoader {
+
+	private final File file;
+	private final File indexFile;
+	// the start and length in bytes of the line of every instance
+	private final Map<Integer, long[]> positions = new HashMap<>();
+	private byte[] buffer = new byte[0]; // reused for every line
+
+	public InstanceLoader(String fileName) throws IOException {
+		this.file = new File(fileName);
+		this.indexFile = new File(fileName + ".idx");
+		if (!readIndex()) {
+			scan();
+			writeIndex();
+		}
+	}
+
+	/**
+	 * Reads the numbers of an instance.
+	 *
+	 * @param index the index of the instance
+	 * @return the numbers on the line of the instance, or null if there is no such instance
+	 * @throws IOException
+	 */
+	public synchronized int[] load(int index) throws IOException {
+		long[] position = positions.get(index);
+		if (position == null) {
+			return null;
+		}
+		int length = (int) position[1];
+		if (buffer.length < length) {
+			buffer = new byte[length];
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			raf.seek(position[0]);
+			raf.readFully(buffer, 0, length);
+		}
+		return parseLine(buffer, length);
+	}
+
+	/*
+	 * Parses comma separated (non-negative) integers directly from the bytes, without creating strings. The numbers
+	 * are counted first so the result has the right size.
+	 */
+	static int[] parseLine(byte[] line, int length) {
+		int count = 1;
+		for (int i = 0; i < length; i++) {
+			if (line[i] == ',') {
+				count++;
+			}
+		}
+		int[] data = new int[count];
+		int n = 0;
+		int value = 0;
+		for (int i = 0; i < length; i++) {
+			byte b = line[i];
+			if (b >= '0' && b <= '9') {
+				value = value * 10 + (b - '0');
+			} else if (b == ',') {
+				data[n++] = value;
+				value = 0;
+			} else if (b != ' ' && b != '\r' && b != '\n') {
+				throw new NumberFormatException("Unexpected character '" + (char) b + "' in number " + (n + 1));
+			}
+		}
+		data[n] = value;
+		return data;
+	}
+
+	// finds the start of every line and the index at the start of it
+	private void scan() throws IOException {
+		Logger.info("Indexing {}", file.getName());
+		try (InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16)) {
+			long pos = 0;
+			long lineStart = 0;
+			int index = 0;
+			boolean inIndex = true; // still reading the first number of the line
+			int b;
+			while ((b = in.read()) != -1) {
+				if (b == '\n') {
+					addLine(index, lineStart, pos - lineStart);
+					lineStart = pos + 1;
+					index = 0;
+					inIndex = true;
+				} else if (inIndex) {
+					if (b >= '0' && b <= '9') {
+						index = index * 10 + (b - '0');
+					} else {
+						inIndex = false;
+					}
+				}
+				pos++;
+			}
+			addLine(index, lineStart, pos - lineStart); // the last line may not end with a newline
+		}
+	}
+
+	private void addLine(int index, long start, long length) {
+		if (length > 1) { // skip empty lines (or only a carriage return)
+			positions.put(index, new long[] { start, length });
+		}
+	}
+
+	/*
+	 * The index file starts with the size and modification time of the CSV it belongs to, followed by a line with
+	 * the index, start and length of every instance.
+	 */
+	private boolean readIndex() {
+		if (!indexFile.exists()) {
+			return false;
+		}
+		try (BufferedReader br = new BufferedReader(new FileReader(indexFile))) {
+			String[] header = br.readLine().split(",");
+			if (Long.parseLong(header[0]) != file.length() || Long.parseLong(header[1]) != file.lastModified()) {
+				Logger.info("{} has changed since it was indexed", file.getName());
+				return false;
+			}
+			String line;
+			while ((line = br.readLine()) != null) {
+				String[] data = line.split(",");
+				positions.put(Integer.parseInt(data[0]), new long[] { Long.parseLong(data[1]), Long.parseLong(data[2]) });
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			Logger.warn("Could not read {}: {}", indexFile.getName(), e);
+			positions.clear();
+			return false;
+		}
+	}
+
+	private void writeIndex() {
+		try (PrintWriter pw = new PrintWriter(indexFile)) {
+			pw.println(file.length() + "," + file.lastModified());
+			for (Map.Entry<Integer, long[]> e : positions.entrySet()) {
+				pw.println(e.getKey() + "," + e.getValue()[0] + "," + e.getValue()[1]);
+			}
+		} catch (IOException e) {
+			// not a problem, the file is scanned again next time
+			Logger.warn("Could not write {}: {}", indexFile.getName(), e);
+		}
+	}
+}
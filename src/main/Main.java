@@ -1,10 +1,16 @@
 package main;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
+import heuristics.repair.BestInsertionWithTransfer;
+import heuristics.repair.RepairHeuristic;
+import problem.DistanceMatrix;
 import problem.Node;
 import problem.NodeType;
 import problem.Problem;
@@ -22,6 +28,7 @@ public class Main {
 	final static String FILE_NAME = "large_instances.csv";
 	static List<Problem> problems;
 	static List<Solution> solutions;
+	static InstanceLoader loader;
 
 	public static void main(String[] args) throws IOException {
 		Logger.info("Starting main program.");
@@ -54,28 +61,115 @@ public class Main {
 		
 		
 		
+		long startTime = System.currentTimeMillis();
 		int start = Integer.parseInt(args[0]);
 		int end = Integer.parseInt(args[1]);
-		int it = Integer.parseInt(args[2]);
-		int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), end-start + 1);
+		// the number of iterations per instance, or a time limit per instance in seconds, e.g. 90s
+		int it;
+		long timeLimit = -1;
+		if (args[2].endsWith("s")) {
+			timeLimit = 1000 * Long.parseLong(args[2].substring(0, args[2].length() - 1));
+			it = Integer.MAX_VALUE;
+		} else {
+			it = Integer.parseInt(args[2]);
+		}
+		// the optional arguments follow in this order, or by name in any order, e.g. "1 195 1000 starts=4 deadline=3600"
+		String layout = getOption(args, 3, "layout");
+		if (layout != null) {
+			// layout of the distance matrices, e.g. triangular or float_triangular for large instances
+			Problem.distanceLayout = DistanceMatrix.Layout.valueOf(layout.toUpperCase());
+		}
+		// number of independent searches per instance, which run at the same time
+		String startsOption = getOption(args, 4, "starts");
+		int starts = startsOption != null ? Integer.parseInt(startsOption) : 1;
+		// "coop" (or coop=true) to let these searches share their best solutions and weights
+		String coop = getOption(args, 5, "coop");
+		boolean cooperative = coop != null && (coop.equalsIgnoreCase("coop") || coop.equalsIgnoreCase("true"));
+		// time limit of the whole batch in seconds, every instance gets a share of the remaining time
+		String deadlineOption = getOption(args, 6, "deadline");
+		long deadline = deadlineOption != null ? startTime + 1000 * Long.parseLong(deadlineOption) : -1;
+		// granular insertion, the number of nearest pickups and dropoffs whose routes are tried (0 tries all routes)
+		String granularity = getOption(args, 7, "granularity");
+		if (granularity != null) {
+			RepairHeuristic.granularity = Integer.parseInt(granularity);
+			Problem.maxNeighbours = Math.max(Problem.maxNeighbours, RepairHeuristic.granularity);
+		}
+		int numThreads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() / starts, end-start + 1));
+		// if there are fewer searches than cores, the other cores evaluate the insertions of the repair heuristics and
+		// the windows of independent groups of routes
+		RepairHeuristic.parallelRoutes = numThreads * starts < Runtime.getRuntime().availableProcessors();
+		BestInsertionWithTransfer.parallelTypes = RepairHeuristic.parallelRoutes;
+		Solution.parallelWindows = RepairHeuristic.parallelRoutes;
 //		int iter = Integer.parseInt(args[2]);
 		
+		// the runners take the instances from a shared queue, the hardest first, so they finish at about the same time
+		List<Problem> batch = new ArrayList<>();
+		Map<Problem, Double> difficulty = new HashMap<>();
+		for (int index = start; index <= end && index <= 195; index++) {
+			Problem p = getSpecificProblem(index);
+			if (p != null) {
+				batch.add(p);
+				difficulty.put(p, estimateDifficulty(p));
+			}
+		}
+		batch.sort(Comparator.comparingDouble((Problem p) -> difficulty.get(p)).reversed());
+		Queue<Problem> queue = new ConcurrentLinkedQueue<>(batch);
+		
 		ALNSRunner[] runners = new ALNSRunner[numThreads];
 		
 		for (int i = 0; i < numThreads; i++) {
-			int index = i + start;
 			runners[i] = new ALNSRunner();
 			runners[i].setIterations(it);
-			while (index <= end && index <= 195) {
-				runners[i].assignProblem(getSpecificProblem(index));
-				index += numThreads;
-			}
+			runners[i].setTimeLimit(timeLimit);
+			runners[i].setDeadline(deadline, numThreads);
+			runners[i].setStarts(starts);
+			runners[i].setCooperative(cooperative);
+			runners[i].setQueue(queue);
 			runners[i].start();
 		}
 //		problems.clear();
 //		problems = null;
 	}
 	
+	/**
+	 * Returns an optional argument, given by name (name=value) or at its position.
+	 * 
+	 * @param args the arguments of the program
+	 * @param position the position of the argument if it is not given by name
+	 * @param name the name of the argument
+	 * @return the value, or null if it is not given
+	 */
+	static String getOption(String[] args, int position, String name) {
+		for (String arg : args) {
+			if (arg.startsWith(name + "=")) {
+				return arg.substring(name.length() + 1);
+			}
+		}
+		if (position < args.length && !args[position].contains("=")) {
+			return args[position];
+		}
+		return null;
+	}
+	
+	/**
+	 * Estimates the running time of an instance relative to others. Every insertion is evaluated against the routes
+	 * (which grow with the number of requests) and the transfers, and wider time windows leave more positions in 
+	 * a route to evaluate.
+	 * 
+	 * @param p the problem instance
+	 * @return the estimate, in no particular unit
+	 */
+	static double estimateDifficulty(Problem p) {
+		double horizon = 0;
+		double width = 0;
+		for (Request r : p.requests) {
+			horizon = Math.max(horizon, r.dropoffNode.l);
+			width += (r.pickupNode.l - r.pickupNode.e) + (r.dropoffNode.l - r.dropoffNode.e);
+		}
+		double relativeWidth = horizon > 0 ? width / (2 * p.numRequests * horizon) : 1;
+		return (double) p.numRequests * (p.numRequests + p.numTransferCandidates) * (1 + relativeWidth);
+	}
+	
 	/**
 	 * Creates a list of problem instances as parsed from the CSV.
 	 * 
@@ -84,39 +178,20 @@ public class Main {
 	 */
 	static List<Problem> createProblemInstances() throws IOException {
 		ArrayList<Problem> problems = new ArrayList<>();
-		try (BufferedReader br = new BufferedReader(new FileReader(FILE_NAME))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				String[] stringData = line.split(",");
-				int[] intData = new int[stringData.length];
-				for (int i = 0; i < stringData.length; i++) {
-					intData[i] = Integer.parseInt(stringData[i]);
-				}
-				problems.add(parseInstance(intData));
-				
-			}
-			br.close();
+		Problem p;
+		for (int index = 1; (p = getSpecificProblem(index)) != null; index++) {
+			problems.add(p);
 		}
 		return problems;
 	}
 	
+	// only reads the line of this instance, the positions of the instances are found once
 	static Problem getSpecificProblem(int index) throws IOException {
-		try (BufferedReader br = new BufferedReader(new FileReader(FILE_NAME))) {
-			String line;
-			while ((line = br.readLine()) != null) {
-				String[] stringData = line.split(",");
-				int[] intData = new int[stringData.length];
-				for (int i = 0; i < stringData.length; i++) {
-					intData[i] = Integer.parseInt(stringData[i]);
-				}
-				if (intData[0] == index) {
-					br.close();
-					return parseInstance(intData);
-				}
-				
-			}
+		if (loader == null) {
+			loader = new InstanceLoader(FILE_NAME);
 		}
-		return null;
+		int[] data = loader.load(index);
+		return data == null ? null : parseInstance(data);
 	}
 	
 	/**
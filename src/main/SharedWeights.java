@@ -0,0 +1,52 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The adaptive heuristic weights of cooperating searches on the same instance. Every search publishes a copy of its
+ * weights in its own slot, so publishing and reading do not block.
+ */
+public class SharedWeights {
+
+	private final AtomicReferenceArray<double[]> destroy;
+	private final AtomicReferenceArray<double[]> repair;
+
+	public SharedWeights(int numSearches) {
+		this.destroy = new AtomicReferenceArray<>(numSearches);
+		this.repair = new AtomicReferenceArray<>(numSearches);
+	}
+
+	public void publish(int search, double[] destroyWeights, double[] repairWeights) {
+		destroy.set(search, destroyWeights.clone());
+		repair.set(search, repairWeights.clone());
+	}
+
+	/**
+	 * Moves the weights halfway towards the average of the published weights (of all searches, including this one).
+	 */
+	public void blend(double[] destroyWeights, double[] repairWeights) {
+		blend(destroy, destroyWeights);
+		blend(repair, repairWeights);
+	}
+
+	private static void blend(AtomicReferenceArray<double[]> published, double[] weights) {
+		double[] sum = new double[weights.length];
+		int count = 0;
+		for (int i = 0; i < published.length(); i++) {
+			double[] w = published.get(i);
+			if (w == null) {
+				continue;
+			}
+			for (int j = 0; j < weights.length; j++) {
+				sum[j] += w[j];
+			}
+			count++;
+		}
+		if (count == 0) {
+			return;
+		}
+		for (int j = 0; j < weights.length; j++) {
+			weights[j] = (weights[j] + sum[j] / count) / 2;
+		}
+	}
+}
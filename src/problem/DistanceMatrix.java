@@ -0,0 +1,155 @@
+package problem;
+
+/**
+ * A symmetric matrix of distances (or costs) between nodes, indexed by node id - 1. The values are stored in a
+ * single array, either as a full row-major matrix or as its lower triangle, in double or float precision.
+ */
+public abstract class DistanceMatrix {
+
+	public enum Layout {
+		FULL, // n * n doubles
+		TRIANGULAR, // n * (n + 1) / 2 doubles
+		FLOAT, // n * n floats
+		FLOAT_TRIANGULAR // n * (n + 1) / 2 floats
+	}
+
+	protected final int n;
+	private Layout layout;
+
+	protected DistanceMatrix(int n) {
+		this.n = n;
+	}
+
+	/**
+	 * Creates an empty matrix.
+	 *
+	 * @param layout how the values are stored
+	 * @param n the number of nodes
+	 * @return a matrix of n by n zeroes
+	 */
+	public static DistanceMatrix create(Layout layout, int n) {
+		DistanceMatrix matrix;
+		switch (layout) {
+		case TRIANGULAR:
+			matrix = new Triangular(n);
+			break;
+		case FLOAT:
+			matrix = new FloatFull(n);
+			break;
+		case FLOAT_TRIANGULAR:
+			matrix = new FloatTriangular(n);
+			break;
+		default:
+			matrix = new Full(n);
+		}
+		matrix.layout = layout;
+		return matrix;
+	}
+
+	public int size() {
+		return n;
+	}
+
+	public Layout getLayout() {
+		return layout;
+	}
+
+	public abstract double get(int i, int j);
+
+	// sets both (i, j) and (j, i)
+	public abstract void set(int i, int j, double value);
+
+	// the matrix multiplied by some factor, in the same layout
+	public DistanceMatrix scale(double factor) {
+		DistanceMatrix scaled = create(layout, n);
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j <= i; j++) {
+				scaled.set(i, j, factor * get(i, j));
+			}
+		}
+		return scaled;
+	}
+
+	// position of (i, j) in the lower triangle, row by row
+	protected static int triangularIndex(int i, int j) {
+		return i >= j ? i * (i + 1) / 2 + j : j * (j + 1) / 2 + i;
+	}
+
+	private static class Full extends DistanceMatrix {
+		private final double[] values;
+
+		Full(int n) {
+			super(n);
+			values = new double[n * n];
+		}
+
+		@Override
+		public double get(int i, int j) {
+			return values[i * n + j];
+		}
+
+		@Override
+		public void set(int i, int j, double value) {
+			values[i * n + j] = value;
+			values[j * n + i] = value;
+		}
+	}
+
+	private static class Triangular extends DistanceMatrix {
+		private final double[] values;
+
+		Triangular(int n) {
+			super(n);
+			values = new double[n * (n + 1) / 2];
+		}
+
+		@Override
+		public double get(int i, int j) {
+			return values[triangularIndex(i, j)];
+		}
+
+		@Override
+		public void set(int i, int j, double value) {
+			values[triangularIndex(i, j)] = value;
+		}
+	}
+
+	private static class FloatFull extends DistanceMatrix {
+		private final float[] values;
+
+		FloatFull(int n) {
+			super(n);
+			values = new float[n * n];
+		}
+
+		@Override
+		public double get(int i, int j) {
+			return values[i * n + j];
+		}
+
+		@Override
+		public void set(int i, int j, double value) {
+			values[i * n + j] = (float) value;
+			values[j * n + i] = (float) value;
+		}
+	}
+
+	private static class FloatTriangular extends DistanceMatrix {
+		private final float[] values;
+
+		FloatTriangular(int n) {
+			super(n);
+			values = new float[n * (n + 1) / 2];
+		}
+
+		@Override
+		public double get(int i, int j) {
+			return values[triangularIndex(i, j)];
+		}
+
+		@Override
+		public void set(int i, int j, double value) {
+			values[triangularIndex(i, j)] = (float) value;
+		}
+	}
+}
@@ -2,9 +2,8 @@ package problem;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 
 import org.pmw.tinylog.Logger;
 
@@ -17,7 +16,13 @@ public class Problem {
 	public int capacity;
 	public int travelCost; // per unit distance
 
-	public double[][] distanceMatrix;
+	// how the distance and cost matrices are stored, the triangular and float layouts use less memory
+	public static DistanceMatrix.Layout distanceLayout = DistanceMatrix.Layout.FULL;
+	// the maximum length of the neighbour lists, the full lists hold 2 * numRequests - 1 ids per node
+	// (Integer.MAX_VALUE for full lists), at least RepairHeuristic.granularity
+	public static int maxNeighbours = 100;
+
+	public DistanceMatrix distanceMatrix;
 	
 	public double maxCost;
 
@@ -25,7 +30,24 @@ public class Problem {
 	public List<Node> transfers = new ArrayList<>();
 	public List<Node> depots = new ArrayList<>();
 
-	public Map<Node, Node> nearestDepot = new HashMap<>();
+	// lookup tables indexed by node id - 1 (like the distance matrix), used in the hot paths instead of the node objects
+	public Node[] nodes;
+	public DistanceMatrix costMatrix; // travelCost * distance, the distance matrix itself if travelCost == 1
+	public int[] nearestDepotId;
+	public double[] depotCost; // the cost of travelling to (or from) the nearest depot
+	public double[] e, l;
+	public int[] s;
+	public int[] maxRideTime; // L of the associated request for pickups and dropoffs, 0 otherwise
+	public int[] partnerId; // the id of the dropoff for a pickup and vice versa, 0 otherwise
+	public int[][] neighbours; // the ids of the nearest pickups and dropoffs (excluding the node itself), nearest first
+	// for pickups the ids of all other pickups and for dropoffs those of all other dropoffs, nearest first
+	public int[][] sameTypeNeighbours;
+
+	// for each request (id - 1) the ids of the requests that can never be served by the same vehicle
+	public BitSet[] incompatible;
+	// for each request (id - 1) the ids of the transfers it can use, and the transfers ranked by detour (lowest first)
+	public BitSet[] feasibleTransfers;
+	public int[][] rankedTransfers;
 
 	/* Runs all functions that are necessary for preprocessing the nodes */
 	public void preProcess() {
@@ -37,6 +59,10 @@ public class Problem {
 		this.calculateNearestDepots(allNodes);
 		this.maxCost = this.getMaxDistance() * travelCost;;
 		this.adjustTimeWindows();
+		this.fillLookupTables(allNodes);
+		this.calculateNeighbours(allNodes);
+		this.calculateCompatibility();
+		this.calculateFeasibleTransfers();
 		this.isFeasible();
 	}
 
@@ -45,14 +71,179 @@ public class Problem {
 	private void adjustTimeWindows() {
 		Logger.debug("Instance {000}: adjusting time windows", this.index);
 		for (Request r : requests) {
-			Node near = nearestDepot.get(r.dropoffNode);
-			r.dropoffNode.e = Math.max(r.dropoffNode.e, this.distanceBetween(r.dropoffNode, near));
+			r.dropoffNode.e = Math.max(r.dropoffNode.e, this.getDistanceToNearestDepot(r.dropoffNode));
+			r.pickupNode.e = Math.max(r.pickupNode.e, this.getDistanceToNearestDepot(r.pickupNode));
+		}
+	}
 
-			near = nearestDepot.get(r.pickupNode);
-			r.pickupNode.e = Math.max(r.pickupNode.e, this.distanceBetween(r.pickupNode, near));
+	// copies the (adjusted) node data into arrays, so it can be looked up by id
+	private void fillLookupTables(List<Node> allNodes) {
+		Logger.debug("Instance {000}: filling lookup tables", this.index);
+		int n = allNodes.size();
+		e = new double[n];
+		l = new double[n];
+		s = new int[n];
+		maxRideTime = new int[n];
+		partnerId = new int[n];
+		for (Node a : allNodes) {
+			e[a.id - 1] = a.e;
+			l[a.id - 1] = a.l;
+			s[a.id - 1] = a.s;
+		}
+		for (Request r : requests) {
+			maxRideTime[r.pickupNode.id - 1] = r.L;
+			maxRideTime[r.dropoffNode.id - 1] = r.L;
+			partnerId[r.pickupNode.id - 1] = r.dropoffNode.id;
+			partnerId[r.dropoffNode.id - 1] = r.pickupNode.id;
 		}
 	}
 
+	/*
+	 * Sorts the pickups and dropoffs by distance for each node, so the heuristics do not have to sort them
+	 * every iteration
+	 */
+	private void calculateNeighbours(List<Node> allNodes) {
+		Logger.debug("Instance {000}: calculating neighbour lists", this.index);
+		neighbours = new int[allNodes.size()][];
+		sameTypeNeighbours = new int[allNodes.size()][];
+		Integer[] requestNodeIds = new Integer[2 * numRequests];
+		for (Node a : allNodes) {
+			// pickup and dropoff ids are 1..2 * numRequests
+			for (int i = 0; i < requestNodeIds.length; i++) {
+				requestNodeIds[i] = i + 1;
+			}
+			int row = a.id - 1;
+			Arrays.sort(requestNodeIds, (left, right) -> Double.compare(distanceMatrix.get(row, left - 1), distanceMatrix.get(row, right - 1)));
+			int[] list = new int[Math.min(maxNeighbours, requestNodeIds.length)];
+			int size = 0;
+			for (int i = 0; i < requestNodeIds.length && size < list.length; i++) {
+				if (requestNodeIds[i] != a.id) {
+					list[size++] = requestNodeIds[i];
+				}
+			}
+			neighbours[a.id - 1] = Arrays.copyOf(list, size);
+			if (a.id <= 2 * numRequests) {
+				// not truncated, the cluster removal may take any of them
+				boolean isPickup = a.id <= numRequests;
+				int[] sameType = new int[numRequests - 1];
+				size = 0;
+				for (int id : requestNodeIds) {
+					if (id != a.id && (id <= numRequests) == isPickup) {
+						sameType[size++] = id;
+					}
+				}
+				sameTypeNeighbours[a.id - 1] = sameType;
+			}
+		}
+	}
+
+	/*
+	 * Two requests are incompatible if they cannot be served by the same vehicle in any order, because of
+	 * the time windows or the max ride times. Only necessary conditions are checked (arriving as early as
+	 * possible and riding without waiting), so compatible requests may still not fit together.
+	 */
+	private void calculateCompatibility() {
+		Logger.debug("Instance {000}: calculating request compatibility", this.index);
+		incompatible = new BitSet[numRequests];
+		for (int i = 0; i < numRequests; i++) {
+			incompatible[i] = new BitSet(numRequests + 1);
+		}
+		int numIncompatible = 0;
+		for (int i = 0; i < numRequests; i++) {
+			for (int j = i + 1; j < numRequests; j++) {
+				Request a = requests.get(i);
+				Request b = requests.get(j);
+				if (!canShareVehicle(a, b)) {
+					incompatible[i].set(b.id);
+					incompatible[j].set(a.id);
+					numIncompatible++;
+				}
+			}
+		}
+		Logger.debug("Instance {000}: {} of {} request pairs are incompatible", this.index, numIncompatible, numRequests * (numRequests - 1) / 2);
+	}
+
+	// tries all 6 orders of the pickups and dropoffs of a and b
+	private boolean canShareVehicle(Request a, Request b) {
+		Node pa = a.pickupNode, da = a.dropoffNode, pb = b.pickupNode, db = b.dropoffNode;
+		Node[][] orders = {
+				{pa, da, pb, db}, {pb, db, pa, da}, // one after the other
+				{pa, pb, da, db}, {pa, pb, db, da}, {pb, pa, da, db}, {pb, pa, db, da} // interleaved
+		};
+		for (Node[] order : orders) {
+			if (isPossibleOrder(order, a, b)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean isPossibleOrder(Node[] order, Request a, Request b) {
+		final double eps = 1e-6;
+		double[] start = new double[order.length]; // earliest start of service
+		double[] drive = new double[order.length]; // driving and service time since the first node, without waiting
+		start[0] = order[0].e;
+		for (int k = 1; k < order.length; k++) {
+			double leg = order[k - 1].s + distanceBetween(order[k - 1], order[k]);
+			start[k] = Math.max(order[k].e, start[k - 1] + leg);
+			drive[k] = drive[k - 1] + leg;
+			if (start[k] > order[k].l + eps) {
+				return false;
+			}
+		}
+		// the ride time is at least the time spent driving and serving others between pickup and dropoff
+		for (Request r : new Request[] {a, b}) {
+			int pickup = Arrays.asList(order).indexOf(r.pickupNode);
+			int dropoff = Arrays.asList(order).indexOf(r.dropoffNode);
+			if (drive[dropoff] - drive[pickup] - r.pickupNode.s > r.L + eps) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * A request can use a transfer if going from the pickup to the transfer to the dropoff, including the
+	 * service times at the transfer (once for each vehicle), satisfies the max ride time and the dropoff time window.
+	 * The detour is the extra distance compared to going directly.
+	 */
+	private void calculateFeasibleTransfers() {
+		Logger.debug("Instance {000}: calculating feasible transfers", this.index);
+		feasibleTransfers = new BitSet[numRequests];
+		rankedTransfers = new int[numRequests][];
+		final double eps = 1e-6;
+		int numFeasible = 0;
+		for (Request r : requests) {
+			BitSet feasible = new BitSet();
+			List<Node> ranked = new ArrayList<>();
+			for (Node t : transfers) {
+				double rideTime = distanceBetween(r.pickupNode, t) + 2 * t.s + distanceBetween(t, r.dropoffNode);
+				double earliestDropoff = Math.max(r.dropoffNode.e, r.pickupNode.e + r.pickupNode.s + rideTime);
+				if (rideTime <= r.L + eps && earliestDropoff <= r.dropoffNode.l + eps) {
+					feasible.set(t.id);
+					ranked.add(t);
+				}
+			}
+			ranked.sort((left, right) -> Double.compare(getTransferDetour(r, left), getTransferDetour(r, right)));
+			feasibleTransfers[r.id - 1] = feasible;
+			rankedTransfers[r.id - 1] = new int[ranked.size()];
+			for (int i = 0; i < ranked.size(); i++) {
+				rankedTransfers[r.id - 1][i] = ranked.get(i).id;
+			}
+			numFeasible += ranked.size();
+		}
+		Logger.debug("Instance {000}: {} of {} request/transfer pairs are feasible", this.index, numFeasible, numRequests * transfers.size());
+	}
+
+	private double getTransferDetour(Request r, Node t) {
+		return distanceBetween(r.pickupNode, t) + distanceBetween(t, r.dropoffNode) - distanceBetween(r.pickupNode, r.dropoffNode);
+	}
+
+	// whether the request can be transferred at t at all
+	public boolean canUseTransfer(int requestId, Node t) {
+		return feasibleTransfers[requestId - 1].get(t.id);
+	}
+
 	/* Returns a list containing all nodes */
 	public List<Node> getAllNodes(boolean sorted) {
 		ArrayList<Node> allNodes = new ArrayList<>();
@@ -72,6 +263,8 @@ public class Problem {
 	 */
 	private void calculateNearestDepots(List<Node> allNodes) {
 		Logger.debug("Instance {000}: calculating nearest depot", this.index);
+		nearestDepotId = new int[allNodes.size()];
+		depotCost = new double[allNodes.size()];
 		for (Node a : allNodes) {
 			// we do not skip the depots
 			// calculate nearest depot for all other nodes
@@ -84,7 +277,8 @@ public class Problem {
 					distance = tmpDist;
 				}
 			}
-			nearestDepot.put(a, nearest);
+			nearestDepotId[a.id - 1] = nearest.id;
+			depotCost[a.id - 1] = travelCost * distance;
 		}
 	}
 
@@ -119,33 +313,43 @@ public class Problem {
 	 */
 	private void preCalcDistances(List<Node> allNodes) {
 		Logger.debug("Instance {000}: calculating distance and cost matrices", this.index);
-		distanceMatrix = new double[allNodes.size()][allNodes.size()];
+		distanceMatrix = DistanceMatrix.create(distanceLayout, allNodes.size());
+		nodes = new Node[allNodes.size()];
 
-		// iterate over all node to calculate distances/costs
+		// iterate over all node to calculate distances/costs, the matrix is symmetric so only do b <= a
 		for (Node a : allNodes) {
+			nodes[a.id - 1] = a;
 			for (Node b : allNodes) {
+				if (b.id > a.id) {
+					continue;
+				}
 				if (a == b) {
-					distanceMatrix[a.id - 1][b.id - 1] = 0; // ids are 1-indexed, arrays 0-indexed
+					distanceMatrix.set(a.id - 1, b.id - 1, 0); // ids are 1-indexed, arrays 0-indexed
 				} else {
-					distanceMatrix[a.id - 1][b.id - 1] = Math
-							.sqrt((a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y));
+					distanceMatrix.set(a.id - 1, b.id - 1, Math
+							.sqrt((a.x - b.x) * (a.x - b.x) + (a.y - b.y) * (a.y - b.y)));
 				}
 			}
 		}
+		if (travelCost == 1) {
+			costMatrix = distanceMatrix;
+		} else {
+			costMatrix = distanceMatrix.scale(travelCost);
+		}
 	}
 
 	/* Prints the distance matrix with node ids */
 	@SuppressWarnings("unused")
 	private void printDistanceMatrix() {
 		System.out.printf("     ");
-		for (int i = 0; i < distanceMatrix.length; i++) {
+		for (int i = 0; i < distanceMatrix.size(); i++) {
 			System.out.printf("   %03d", i + 1);
 		}
 		System.out.printf("\n");
-		for (int i = 0; i < distanceMatrix.length; i++) {
+		for (int i = 0; i < distanceMatrix.size(); i++) {
 			System.out.printf("%03d   ", i + 1);
-			for (int j = 0; j < distanceMatrix[i].length; j++) {
-				System.out.printf("%5.2f ", distanceMatrix[i][j]);
+			for (int j = 0; j < distanceMatrix.size(); j++) {
+				System.out.printf("%5.2f ", distanceMatrix.get(i, j));
 			}
 			System.out.println();
 		}
@@ -153,21 +357,34 @@ public class Problem {
 
 	// find the nearest depot for some node a
 	public Node getNearestDepot(Node a) {
-		// try to retrieve it before calculating it
-		Node nearest = nearestDepot.get(a);
-		return nearest;
+		return nodes[nearestDepotId[a.id - 1] - 1];
 	}
 
 	// finds the distance to the nearest depot for some node a
 	public double getDistanceToNearestDepot(Node a) {
-		return distanceBetween(a, getNearestDepot(a));
+		return distanceMatrix.get(a.id - 1, nearestDepotId[a.id - 1] - 1);
+	}
+
+	// the ids of the pickups and dropoffs nearest to some node a, nearest first
+	public int[] getNeighbours(Node a) {
+		return neighbours[a.id - 1];
+	}
+
+	// the ids of all other pickups (if a is a pickup) or dropoffs (if a is a dropoff), nearest first
+	public int[] getSameTypeNeighbours(Node a) {
+		return sameTypeNeighbours[a.id - 1];
+	}
+
+	// finds the cost of travelling between some node a and its nearest depot
+	public double getCostToNearestDepot(Node a) {
+		return depotCost[a.id - 1];
 	}
 	 public double getMaxDistance(){
 		double maxDist = -1;
-		for(int i = 0; i < distanceMatrix.length;i++){
-			for(int j = 0; j < distanceMatrix[0].length;j++){
-				if(distanceMatrix[i][j] > maxDist){
-					maxDist = distanceMatrix[i][j];
+		for(int i = 0; i < distanceMatrix.size();i++){
+			for(int j = 0; j <= i;j++){
+				if(distanceMatrix.get(i, j) > maxDist){
+					maxDist = distanceMatrix.get(i, j);
 				}
 			}
 		}
@@ -182,7 +399,7 @@ public class Problem {
 	}
 
 	private double distanceBetween(int id1, int id2) {
-		return distanceMatrix[id1 - 1][id2 - 1];
+		return distanceMatrix.get(id1 - 1, id2 - 1);
 	}
 
 	public double costBetween(Node a, Node b) {
@@ -190,7 +407,7 @@ public class Problem {
 	}
 
 	private double costBetween(int id1, int id2) {
-		return travelCost * distanceMatrix[id1 - 1][id2 - 1];
+		return costMatrix.get(id1 - 1, id2 - 1);
 	}
 
 }
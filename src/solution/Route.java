@@ -1,8 +1,12 @@
 package solution;
 
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Predicate;
 import java.util.function.UnaryOperator;
 
@@ -10,12 +14,30 @@ import org.pmw.tinylog.Logger;
 
 import problem.Problem;
 
+/**
+ * A Route is the ordered list of RouteNodes visited by a single vehicle. It is backed by an array,
+ * so indexed access is O(1) and inserting/removing near the end of the route only shifts a few nodes.
+ * The cost of the route is cached and only recalculated after the route has been modified.
+ * 
+ * Routes are shared by copies of a solution. A shared route may not be modified anymore, a solution has to 
+ * replace it by its own copy first (see {@link Solution#getMutableRoute(int)}).
+ *
+ */
 @SuppressWarnings("serial")
-public class Route extends LinkedList<RouteNode>{
+public class Route extends ArrayList<RouteNode>{
+	
+	private static final AtomicLong versions = new AtomicLong();
 	
 	public int vehicleId = -1;
 	private double cost = 0;
 	private boolean routeChanged = true;
+	private boolean windowsChanged = true; // the tight windows of the nodes have to be recalculated
+	private Solution owner = null; // the only solution that may modify this route
+	private boolean shared = false; // used by multiple solutions, so no solution may modify it
+	// calculated when needed (possibly by concurrent insertions into a shared route), reset after every change
+	private volatile BitSet servedRequests = null;
+	private volatile double[] bounds = null; // bounding box and longest leg
+	private long version = versions.incrementAndGet(); // changes with every change, copies have the same version
 	
 	public Route(int vehicleId) {
 		this.vehicleId = vehicleId;
@@ -35,16 +57,182 @@ public class Route extends LinkedList<RouteNode>{
 		problem.Node first = this.getFirst().associatedNode;
 		problem.Node last = this.getLast().associatedNode;
 		
-		cost = p.costBetween(first, p.getNearestDepot(first)) + p.costBetween(last, p.getNearestDepot(last));
+		cost = p.depotCost[first.id - 1] + p.depotCost[last.id - 1];
 		for (int i = 0; i < this.size() - 1; i++) {
-			cost += p.costBetween(this.get(i).associatedNode, this.get(i+1).associatedNode);
+			cost += p.costMatrix.get(this.get(i).associatedNode.id - 1, this.get(i+1).associatedNode.id - 1);
 		}
 		Logger.trace("(New) cost: {00.00}", cost);
 		routeChanged = false;
 	}
 	
+	/**
+	 * Calculates the change in cost of inserting a pickup and dropoff into this route, without modifying it.
+	 * Both locations refer to the route as it is now: the pickup is inserted before the node currently at
+	 * pickupLoc and the dropoff before the node currently at dropoffLoc. If both locations are equal, the
+	 * dropoff directly follows the pickup. A location equal to the size of the route means appending.
+	 * 
+	 * @param p the problem instance
+	 * @param pickupLoc the location of the pickup
+	 * @param pickup the node that is picked up
+	 * @param dropoffLoc the location of the dropoff (>= pickupLoc)
+	 * @param dropoff the node that is dropped off
+	 * @return the insertion cost, including changes to the depot legs
+	 */
+	public double getInsertionCost(Problem p, int pickupLoc, problem.Node pickup, int dropoffLoc, problem.Node dropoff) {
+		problem.Node beforePickup = pickupLoc > 0 ? this.get(pickupLoc - 1).associatedNode : null;
+		problem.Node afterPickup = pickupLoc < this.size() ? this.get(pickupLoc).associatedNode : null;
+		if (pickupLoc == dropoffLoc) {
+			// the pickup and dropoff replace a single leg
+			return legCost(p, beforePickup, pickup) + p.costBetween(pickup, dropoff) + legCost(p, dropoff, afterPickup)
+					- legCost(p, beforePickup, afterPickup);
+		}
+		// there is at least one node in between, so both detours are independent
+		problem.Node beforeDropoff = this.get(dropoffLoc - 1).associatedNode;
+		problem.Node afterDropoff = dropoffLoc < this.size() ? this.get(dropoffLoc).associatedNode : null;
+		return legCost(p, beforePickup, pickup) + legCost(p, pickup, afterPickup) - legCost(p, beforePickup, afterPickup)
+				+ legCost(p, beforeDropoff, dropoff) + legCost(p, dropoff, afterDropoff) - legCost(p, beforeDropoff, afterDropoff);
+	}
+	
+	/**
+	 * Calculates the cost of this route if the nodes of a request were removed, without modifying it.
+	 * 
+	 * @param p the problem instance
+	 * @param requestId the id of the request
+	 * @return the cost of the remaining nodes, 0 if there are none
+	 */
+	public double getCostWithout(Problem p, int requestId) {
+		problem.Node first = null;
+		problem.Node prev = null;
+		double cost = 0;
+		for (RouteNode rn : this) {
+			if (rn.requestId == requestId) {
+				continue;
+			}
+			if (prev == null) {
+				first = rn.associatedNode;
+			} else {
+				cost += p.costMatrix.get(prev.id - 1, rn.associatedNode.id - 1);
+			}
+			prev = rn.associatedNode;
+		}
+		if (prev == null) {
+			return 0;
+		}
+		return cost + p.depotCost[first.id - 1] + p.depotCost[prev.id - 1];
+	}
+	
+	/**
+	 * Calculates a lower bound on {@link #getInsertionCost(Problem, int, problem.Node, int, problem.Node)} for any
+	 * locations, using only the bounding box of the route and its longest leg. Each inserted node x at distance D
+	 * of the box either replaces a leg of length at most M, which costs at least 2 * sqrt(D^2 + (M/2)^2) - M,
+	 * or becomes the first or last node, which costs at least D plus the change in depot distance.
+	 * 
+	 * @return a lower bound on the insertion cost of the pickup and dropoff
+	 */
+	public double getInsertionLowerBound(Problem p, problem.Node pickup, problem.Node dropoff) {
+		if (this.isEmpty()) {
+			return 0;
+		}
+		double[] b = getBounds(p);
+		return p.travelCost * Math.max(getDetourLowerBound(p, b, pickup), getDetourLowerBound(p, b, dropoff));
+	}
+	
+	// in distance units
+	private double getDetourLowerBound(Problem p, double[] b, problem.Node x) {
+		double dx = Math.max(0, Math.max(b[0] - x.x, x.x - b[2]));
+		double dy = Math.max(0, Math.max(b[1] - x.y, x.y - b[3]));
+		double distance = Math.sqrt(dx * dx + dy * dy);
+		double atEnd = p.getDistanceToNearestDepot(x) + distance - b[5];
+		if (this.size() == 1) {
+			return Math.max(0, atEnd);
+		}
+		double maxLeg = b[4];
+		double inBetween = 2 * Math.sqrt(distance * distance + maxLeg * maxLeg / 4) - maxLeg;
+		return Math.max(0, Math.min(atEnd, inBetween));
+	}
+	
+	// minX, minY, maxX, maxY, longest leg, longest distance from the first or last node to its depot
+	private double[] getBounds(Problem p) {
+		double[] b = bounds;
+		if (b == null) {
+			b = new double[] {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, 0};
+			problem.Node prev = null;
+			for (RouteNode rn : this) {
+				problem.Node n = rn.associatedNode;
+				b[0] = Math.min(b[0], n.x);
+				b[1] = Math.min(b[1], n.y);
+				b[2] = Math.max(b[2], n.x);
+				b[3] = Math.max(b[3], n.y);
+				if (prev != null) {
+					b[4] = Math.max(b[4], p.distanceBetween(prev, n));
+				}
+				prev = n;
+			}
+			b[5] = Math.max(p.getDistanceToNearestDepot(getFirst().associatedNode), p.getDistanceToNearestDepot(getLast().associatedNode));
+			bounds = b;
+		}
+		return b;
+	}
+	
+	// the cost of travelling from a to b, where null means the nearest depot of the other node
+	private double legCost(Problem p, problem.Node a, problem.Node b) {
+		if (a == null && b == null) {
+			return 0;
+		} else if (a == null) {
+			return p.depotCost[b.id - 1];
+		} else if (b == null) {
+			return p.depotCost[a.id - 1];
+		}
+		return p.costMatrix.get(a.id - 1, b.id - 1);
+	}
+	
 	public void setRouteChanged() {
 		this.routeChanged = true;
+		this.windowsChanged = true;
+		this.servedRequests = null;
+		this.bounds = null;
+		this.version = versions.incrementAndGet();
+	}
+	
+	/**
+	 * @return a number that identifies the contents of this route, i.e. routes with the same version are equal
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * The summary is cached until the route changes, so it must not be modified.
+	 * 
+	 * @return the ids of the requests that are both picked up and dropped off (without transfer) by this route
+	 */
+	public BitSet getServedRequests() {
+		BitSet served = servedRequests;
+		if (served == null) {
+			BitSet pickedUp = new BitSet();
+			served = new BitSet();
+			for (RouteNode rn : this) {
+				if (rn.type == RouteNodeType.PICKUP) {
+					pickedUp.set(rn.requestId);
+				} else if (rn.type == RouteNodeType.DROPOFF && pickedUp.get(rn.requestId)) {
+					served.set(rn.requestId);
+				}
+			}
+			servedRequests = served;
+		}
+		return served;
+	}
+	
+	public boolean hasWindowsChanged() {
+		return windowsChanged;
+	}
+	
+	public void setWindowsChanged() {
+		this.windowsChanged = true;
+	}
+	
+	public void setWindowsUnchanged() {
+		this.windowsChanged = false;
 	}
 	
 	public void setCost(double cost) {
@@ -55,14 +243,54 @@ public class Route extends LinkedList<RouteNode>{
 		this.routeChanged = false;
 	}
 
+	/**
+	 * Makes s the owner of this route, if it is not used by any other solution yet.
+	 * 
+	 * @param s the solution that wants to modify this route
+	 * @return true if s may modify this route
+	 */
+	boolean claim(Solution s) {
+		if (!shared && owner == null) {
+			owner = s;
+		}
+		return !shared && owner == s;
+	}
+	
+	// marks the route as used by multiple solutions, a shared route is not written so solutions can be copied concurrently
+	void share() {
+		if (!shared) {
+			shared = true;
+			owner = null;
+		}
+	}
+	
 	public Route copy() {
 		Route r = new Route(this.vehicleId);
-		r.routeChanged = this.routeChanged;
-		r.cost = this.cost;
+		r.ensureCapacity(this.size() + 2); // room for an insertion without growing
 		for (RouteNode cur : this) {
 			RouteNode next = cur.copy();
 			r.add(next);
 		}
+		// set these after adding, since adding marks the route as changed
+		r.routeChanged = this.routeChanged;
+		r.windowsChanged = this.windowsChanged;
+		r.servedRequests = this.servedRequests;
+		r.bounds = this.bounds;
+		r.version = this.version;
+		r.cost = this.cost;
+		return r;
+	}
+	
+	/**
+	 * Creates a copy of this route with copies of the pickup and dropoff inserted. The locations are interpreted
+	 * the same as in {@link #getInsertionCost(Problem, int, problem.Node, int, problem.Node)}.
+	 * 
+	 * @return a copy of the route including the insertion
+	 */
+	public Route copyWithInsertion(int pickupLoc, RouteNode pickup, int dropoffLoc, RouteNode dropoff) {
+		Route r = this.copy();
+		r.add(pickupLoc, pickup.copy());
+		r.add(dropoffLoc + 1, dropoff.copy());
 		return r;
 	}
 	
@@ -75,156 +303,98 @@ public class Route extends LinkedList<RouteNode>{
 		}
 	}
 
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#add(int, java.lang.Object)
+	/**
+	 * @return the first node of this route
 	 */
-	@Override
-	public void add(int index, RouteNode element) {
-		this.setRouteChanged();
-		super.add(index, element);
-	}
-
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#add(java.lang.Object)
-	 */
-	@Override
-	public boolean add(RouteNode e) {
-		this.setRouteChanged();
-		return super.add(e);
-	}
-
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#addAll(java.util.Collection)
-	 */
-	@Override
-	public boolean addAll(Collection<? extends RouteNode> c) {
-		this.setRouteChanged();
-		return super.addAll(c);
+	public RouteNode getFirst() {
+		if (this.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return this.get(0);
 	}
 
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#addAll(int, java.util.Collection)
+	/**
+	 * @return the last node of this route
 	 */
-	@Override
-	public boolean addAll(int index, Collection<? extends RouteNode> c) {
-		this.setRouteChanged();
-		return super.addAll(index, c);
+	public RouteNode getLast() {
+		if (this.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return this.get(this.size() - 1);
 	}
 
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#addFirst(java.lang.Object)
-	 */
-	@Override
 	public void addFirst(RouteNode e) {
-		this.setRouteChanged();
-		super.addFirst(e);
+		this.add(0, e);
 	}
 
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#addLast(java.lang.Object)
-	 */
-	@Override
 	public void addLast(RouteNode e) {
-		this.setRouteChanged();
-		super.addLast(e);
-	}
-
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#clear()
-	 */
-	@Override
-	public void clear() {
-		this.setRouteChanged();
-		super.clear();
+		this.add(e);
 	}
 
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#offer(java.lang.Object)
-	 */
-	@Override
-	public boolean offer(RouteNode e) {
-		this.setRouteChanged();
-		return super.offer(e);
-	}
-
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#offerFirst(java.lang.Object)
-	 */
-	@Override
-	public boolean offerFirst(RouteNode e) {
-		this.setRouteChanged();
-		return super.offerFirst(e);
+	public RouteNode removeFirst() {
+		if (this.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return this.remove(0);
 	}
 
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#offerLast(java.lang.Object)
-	 */
-	@Override
-	public boolean offerLast(RouteNode e) {
-		this.setRouteChanged();
-		return super.offerLast(e);
+	public RouteNode removeLast() {
+		if (this.isEmpty()) {
+			throw new NoSuchElementException();
+		}
+		return this.remove(this.size() - 1);
 	}
 
 	// override all methods that change the Route so we can ensure it will recalculate the cost after a change
-	
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#poll()
-	 */
-	@Override
-	public RouteNode poll() {
-		this.setRouteChanged();
-		return super.poll();
-	}
+	// note that the iterators of ArrayList delegate to these methods, so removing through an iterator is also tracked
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#pollFirst()
+	 * @see java.util.ArrayList#add(int, java.lang.Object)
 	 */
 	@Override
-	public RouteNode pollFirst() {
+	public void add(int index, RouteNode element) {
 		this.setRouteChanged();
-		return super.pollFirst();
+		super.add(index, element);
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#pollLast()
+	 * @see java.util.ArrayList#add(java.lang.Object)
 	 */
 	@Override
-	public RouteNode pollLast() {
+	public boolean add(RouteNode e) {
 		this.setRouteChanged();
-		return super.pollLast();
+		return super.add(e);
 	}
 
-	// override all methods that change the Route so we can ensure it will recalculate the cost after a change
-	
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#pop()
+	 * @see java.util.ArrayList#addAll(java.util.Collection)
 	 */
 	@Override
-	public RouteNode pop() {
+	public boolean addAll(Collection<? extends RouteNode> c) {
 		this.setRouteChanged();
-		return super.pop();
+		return super.addAll(c);
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#push(java.lang.Object)
+	 * @see java.util.ArrayList#addAll(int, java.util.Collection)
 	 */
 	@Override
-	public void push(RouteNode e) {
+	public boolean addAll(int index, Collection<? extends RouteNode> c) {
 		this.setRouteChanged();
-		super.push(e);
+		return super.addAll(index, c);
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#remove()
+	 * @see java.util.ArrayList#clear()
 	 */
 	@Override
-	public RouteNode remove() {
+	public void clear() {
 		this.setRouteChanged();
-		return super.remove();
+		super.clear();
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#remove(int)
+	 * @see java.util.ArrayList#remove(int)
 	 */
 	@Override
 	public RouteNode remove(int index) {
@@ -233,7 +403,7 @@ public class Route extends LinkedList<RouteNode>{
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#remove(java.lang.Object)
+	 * @see java.util.ArrayList#remove(java.lang.Object)
 	 */
 	@Override
 	public boolean remove(Object o) {
@@ -242,45 +412,16 @@ public class Route extends LinkedList<RouteNode>{
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#removeFirst()
-	 */
-	@Override
-	public RouteNode removeFirst() {
-		this.setRouteChanged();
-		return super.removeFirst();
-	}
-
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#removeFirstOccurrence(java.lang.Object)
+	 * @see java.util.ArrayList#removeRange(int, int)
 	 */
 	@Override
-	public boolean removeFirstOccurrence(Object o) {
+	protected void removeRange(int fromIndex, int toIndex) {
 		this.setRouteChanged();
-		return super.removeFirstOccurrence(o);
+		super.removeRange(fromIndex, toIndex);
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#removeLast()
-	 */
-	@Override
-	public RouteNode removeLast() {
-		this.setRouteChanged();
-		return super.removeLast();
-	}
-
-	/* (non-Javadoc)
-	 * @see java.util.LinkedList#removeLastOccurrence(java.lang.Object)
-	 */
-	@Override
-	public boolean removeLastOccurrence(Object o) {
-		this.setRouteChanged();
-		return super.removeLastOccurrence(o);
-	}
-
-	// override all methods that change the Route so we can ensure it will recalculate the cost after a change
-	
-	/* (non-Javadoc)
-	 * @see java.util.Collection#removeIf(java.util.function.Predicate)
+	 * @see java.util.ArrayList#removeIf(java.util.function.Predicate)
 	 */
 	@Override
 	public boolean removeIf(Predicate<? super RouteNode> filter) {
@@ -289,7 +430,7 @@ public class Route extends LinkedList<RouteNode>{
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.AbstractCollection#removeAll(java.util.Collection)
+	 * @see java.util.ArrayList#removeAll(java.util.Collection)
 	 */
 	@Override
 	public boolean removeAll(Collection<?> c) {
@@ -297,10 +438,8 @@ public class Route extends LinkedList<RouteNode>{
 		return super.removeAll(c);
 	}
 
-	// override all methods that change the Route so we can ensure it will recalculate the cost after a change
-	
 	/* (non-Javadoc)
-	 * @see java.util.List#replaceAll(java.util.function.UnaryOperator)
+	 * @see java.util.ArrayList#replaceAll(java.util.function.UnaryOperator)
 	 */
 	@Override
 	public void replaceAll(UnaryOperator<RouteNode> operator) {
@@ -309,7 +448,7 @@ public class Route extends LinkedList<RouteNode>{
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.AbstractCollection#retainAll(java.util.Collection)
+	 * @see java.util.ArrayList#retainAll(java.util.Collection)
 	 */
 	@Override
 	public boolean retainAll(Collection<?> c) {
@@ -318,7 +457,7 @@ public class Route extends LinkedList<RouteNode>{
 	}
 
 	/* (non-Javadoc)
-	 * @see java.util.LinkedList#set(int, java.lang.Object)
+	 * @see java.util.ArrayList#set(int, java.lang.Object)
 	 */
 	@Override
 	public RouteNode set(int index, RouteNode element) {
@@ -326,6 +465,15 @@ public class Route extends LinkedList<RouteNode>{
 		return super.set(index, element);
 	}
 
+	/* (non-Javadoc)
+	 * @see java.util.ArrayList#sort(java.util.Comparator)
+	 */
+	@Override
+	public void sort(Comparator<? super RouteNode> c) {
+		this.setRouteChanged();
+		super.sort(c);
+	}
+
 	public void updateCapacity() {
 		RouteNode prev = null;
 		for (RouteNode rn : this) {
@@ -348,9 +496,61 @@ public class Route extends LinkedList<RouteNode>{
 		}
 	}
 	
-	public void destroy() {
+	/**
+	 * @return true if this route visits a transfer, i.e. its timings depend on another route
+	 */
+	public boolean hasTransfer() {
+		for (RouteNode rn : this) {
+			if (rn.isTransfer()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Updates the waiting times, ride times and forward time slack of all nodes, based on the current starting 
+	 * times. The slack of a node is the largest delay of its starting time such that all subsequent nodes can be
+	 * delayed accordingly (minus waiting times) without violating their constraints. 
+	 * 
+	 * @param s the solution this route belongs to, used to find the other nodes of each request
+	 */
+	void updateSlack(Solution s) {
+		RouteNode prev = null;
+		double cumWaitingTime = 0;
 		for (RouteNode rn : this) {
-			rn.destroy();
+			if (prev == null) {
+				rn.waitingTime = 0;
+			} else {
+				rn.waitingTime = Math.max(0, rn.getStartOfS() - prev.getDeparture() - s.p.distanceBetween(prev.associatedNode, rn.associatedNode));
+			}
+			cumWaitingTime += rn.waitingTime;
+			rn.cumWaitingTime = cumWaitingTime;
+			prev = rn;
+		}
+		// calculate slack backwards
+		RouteNode next = null;
+		for (int i = this.size() - 1; i >= 0; i--) {
+			RouteNode rn = this.get(i);
+			SolutionRequest sr = s.requests.get(rn.requestId - 1);
+			double ownSlack = s.p.l[rn.associatedNode.id - 1] - rn.getStartOfS();
+			rn.rideTime = -1;
+			if (rn.type == RouteNodeType.DROPOFF && sr.pickup != null) {
+				// delaying the dropoff increases the ride time (we assume the pickup is not delayed)
+				rn.rideTime = rn.getStartOfS() - sr.pickup.getDeparture();
+				ownSlack = Math.min(ownSlack, sr.L - rn.rideTime);
+			} else if (rn.type == RouteNodeType.TRANSFER_DROPOFF && sr.transferPickup != null) {
+				// the other vehicle cannot pick up before we have dropped off
+				ownSlack = Math.min(ownSlack, sr.transferPickup.getStartOfS() - rn.getDeparture());
+			}
+			double ownTightSlack = rn.tightL - rn.getStartOfS();
+			rn.forwardSlack = Math.max(0, ownSlack);
+			rn.tightSlack = Math.max(0, ownTightSlack);
+			if (next != null) {
+				rn.forwardSlack = Math.min(rn.forwardSlack, next.waitingTime + next.forwardSlack);
+				rn.tightSlack = Math.min(rn.tightSlack, next.waitingTime + next.tightSlack);
+			}
+			next = rn;
 		}
 	}
 }
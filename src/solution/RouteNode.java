@@ -1,6 +1,5 @@
 package solution;
 
-import java.util.List;
 
 import org.pmw.tinylog.Logger;
 
@@ -33,15 +32,13 @@ public class RouteNode {
 	public double tightE; // this is the actual value
 	public double tightL;
 	
-	// Tarjan's Algorithm Stuff
-	public RouteNode prevInRoute;
-	public RouteNode before;
-	public RouteNode parent;
-	public RouteNode after;
-	public double negativeTightE; // this is temporary for during the algorithm
-	public List<RouteNode> set; // to which set does it belong
-	public RouteNode scannedFrom;
-
+	// Forward time slack (Savelsbergh 1992, Cordeau & Laporte 2003), updated whenever the tight windows are applied
+	public double waitingTime; // time between arrival and start of service
+	public double cumWaitingTime; // total waiting time in the route up to and including this node
+	public double rideTime = -1; // for dropoffs: time between departure at the pickup and start of service, -1 if unknown
+	public double tightSlack; // max delay of this node that keeps it and all subsequent nodes within their tight windows
+	public double forwardSlack; // max delay that keeps time windows, max ride times and transfers of subseq. nodes satisfied
+	
 	/**
 	 * Creates a node
 	 * 
@@ -122,6 +119,11 @@ public class RouteNode {
 		copy.numPas = this.numPas;
 		copy.tightE = this.tightE;
 		copy.tightL = this.tightL;
+		copy.waitingTime = this.waitingTime;
+		copy.cumWaitingTime = this.cumWaitingTime;
+		copy.rideTime = this.rideTime;
+		copy.tightSlack = this.tightSlack;
+		copy.forwardSlack = this.forwardSlack;
 		return copy;
 	}
 	
@@ -145,14 +147,5 @@ public class RouteNode {
 	public boolean isEFeasible() {
 		return this.startOfS >= this.associatedNode.e;
 	}
-
-	public void destroy() {
-		prevInRoute = null;
-		before = null;
-		parent = null;
-		after = null;
-		set = null; 
-		scannedFrom  = null;
-	}
 	
 }
@@ -4,11 +4,12 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.pmw.tinylog.Logger;
 
@@ -21,16 +22,31 @@ public class Solution {
 	final static double ARBIT_HIGH = 100000;
 	final static double ROUND_ERR = 1e-10;
 	
-	private int nextFreeVehicleId = -1;
+	// calculate all earliest times in one pass, set to false to use the original (much slower) implementation for validation
+	public static boolean singlePassEarliest = true;
+	
+	// only recalculate the windows of routes that are (coupled to) changed routes, set to false to always recalculate all
+	public static boolean incrementalWindows = true;
+	
+	// calculate the windows of independent groups of routes in parallel
+	public static boolean parallelWindows = false;
+	
+	// atomic, since insertions of different types may be evaluated at the same time
+	private final AtomicInteger nextFreeVehicleId = new AtomicInteger(-1);
 
 	public Problem p;
 
+	// routes can be shared with copies of this solution, use getMutableRoute before modifying one
 	public List<Route> routes = new ArrayList<>();
 	public List<Node> openTransfers, closedTransfers;
 	
 	
 	// should be sorted!
 	public List<SolutionRequest> requests = new ArrayList<>();
+	
+	// undo journal of the changes since beginJournal(), null if changes are not recorded
+	private List<JournalEntry> journal = null;
+	private int journalVehicleId;
 
 	/**
 	 * @param p Associated problem instance
@@ -95,7 +111,7 @@ public class Solution {
 			solReq.dropoff = dropoff;
 			
 			this.requests.add(solReq);
-			this.nextFreeVehicleId = r.id + 1;
+			this.nextFreeVehicleId.set(r.id + 1);
 		}
 		calcTightWindows();
 		Logger.info("Found an initial solution for problem {000} with cost {0.00}", p.index, this.getCost());
@@ -206,8 +222,148 @@ public class Solution {
 		}
 	}
 	
+	/**
+	 * Starts recording all changes to this solution, so they can be undone by {@link #rollbackJournal()}. All routes
+	 * are frozen, so each route that is modified is replaced by a copy first and the original can be put back.
+	 */
+	public void beginJournal() {
+		journal = new ArrayList<>();
+		journalVehicleId = nextFreeVehicleId.get();
+		for (Route r : routes) {
+			r.share();
+		}
+	}
+	
+	/**
+	 * Keeps all changes since {@link #beginJournal()} and stops recording.
+	 */
+	public void commitJournal() {
+		journal = null;
+	}
+	
+	/**
+	 * Undoes all changes since {@link #beginJournal()} in reverse order and stops recording. This takes time 
+	 * proportional to the number of changes.
+	 */
+	public void rollbackJournal() {
+		if (journal == null) {
+			Logger.error("Cannot roll back a solution without a journal");
+			return;
+		}
+		for (int i = journal.size() - 1; i >= 0; i--) {
+			JournalEntry entry = journal.get(i);
+			switch (entry.type) {
+			case ROUTE_SET:
+				routes.set(entry.index, entry.route);
+				break;
+			case ROUTE_ADD:
+				routes.remove(entry.index);
+				break;
+			case ROUTE_REMOVE:
+				routes.add(entry.index, entry.route);
+				break;
+			case REQUEST:
+				entry.request.pickup = entry.pickup;
+				entry.request.dropoff = entry.dropoff;
+				entry.request.transferPickup = entry.transferPickup;
+				entry.request.transferDropoff = entry.transferDropoff;
+				break;
+			case TRANSFER_OPEN:
+				openTransfers.remove(openTransfers.size() - 1);
+				closedTransfers.add(entry.index, entry.transfer);
+				break;
+			case TRANSFER_CLOSE:
+				closedTransfers.remove(closedTransfers.size() - 1);
+				openTransfers.add(entry.index, entry.transfer);
+				break;
+			}
+		}
+		nextFreeVehicleId.set(journalVehicleId);
+		journal = null;
+	}
+	
+	private void record(JournalEntryType type, int index, Route route) {
+		if (journal != null) {
+			JournalEntry entry = new JournalEntry(type);
+			entry.index = index;
+			entry.route = route;
+			journal.add(entry);
+		}
+	}
+	
+	// record the current references of a request, before changing them
+	private void record(SolutionRequest sr) {
+		if (journal != null) {
+			JournalEntry entry = new JournalEntry(JournalEntryType.REQUEST);
+			entry.request = sr;
+			entry.pickup = sr.pickup;
+			entry.dropoff = sr.dropoff;
+			entry.transferPickup = sr.transferPickup;
+			entry.transferDropoff = sr.transferDropoff;
+			journal.add(entry);
+		}
+	}
+	
+	/**
+	 * Removes the route at the given index from this solution. The requests still refer to its nodes, so they 
+	 * should be unassigned as well.
+	 * 
+	 * @param routeIndex the index of the route
+	 * @return the removed route
+	 */
+	public Route removeRoute(int routeIndex) {
+		Route r = routes.remove(routeIndex);
+		record(JournalEntryType.ROUTE_REMOVE, routeIndex, r);
+		return r;
+	}
+	
+	/**
+	 * Removes the references of a request to its nodes, after they have been removed from their routes.
+	 * 
+	 * @param sr the request
+	 */
+	public void unassignRequest(SolutionRequest sr) {
+		record(sr);
+		sr.pickup = null;
+		sr.dropoff = null;
+		sr.transferPickup = null;
+		sr.transferDropoff = null;
+	}
+	
+	public void openTransfer(Node transfer) {
+		int index = closedTransfers.indexOf(transfer);
+		if (index == -1) {
+			Logger.warn("Transfer {} is not closed", transfer);
+			return;
+		}
+		closedTransfers.remove(index);
+		openTransfers.add(transfer);
+		if (journal != null) {
+			JournalEntry entry = new JournalEntry(JournalEntryType.TRANSFER_OPEN);
+			entry.index = index;
+			entry.transfer = transfer;
+			journal.add(entry);
+		}
+	}
+	
+	public void closeTransfer(Node transfer) {
+		int index = openTransfers.indexOf(transfer);
+		if (index == -1) {
+			Logger.warn("Transfer {} is not open", transfer);
+			return;
+		}
+		openTransfers.remove(index);
+		closedTransfers.add(transfer);
+		if (journal != null) {
+			JournalEntry entry = new JournalEntry(JournalEntryType.TRANSFER_CLOSE);
+			entry.index = index;
+			entry.transfer = transfer;
+			journal.add(entry);
+		}
+	}
+	
 	public int getNextFreeVehicleId() {
-		return this.nextFreeVehicleId++;
+		return this.nextFreeVehicleId.getAndIncrement();
 	}
 	
 	
@@ -223,8 +379,9 @@ public class Solution {
 		
 		// try to replace a route
 		boolean modificationDone = false; // check if we need to insert
-		for (Route oldRoute : this.routes) {
-			if (oldRoute.vehicleId == newRoute.vehicleId) {
+		for (int routeIndex = 0; routeIndex < this.routes.size(); routeIndex++) {
+			if (this.routes.get(routeIndex).vehicleId == newRoute.vehicleId) {
+				Route oldRoute = getMutableRoute(routeIndex);
 				
 				// preprocess starting depot
 				// since this is not stored anywhere else, we do not need to update the references
@@ -251,6 +408,7 @@ public class Solution {
 						// different node, so insert
 						modificationDone = true;
 						oldRoute.add(i, newTimings);
+						record(sr);
 						switch (newTimings.getType()) {
 						case PICKUP:
 							sr.pickup = newTimings;
@@ -285,20 +443,23 @@ public class Solution {
 	}
 	
 	/**
-	 * Makes a deep copy of the current solution. Each object (except the problem instance) is copied in turn.
-	 * TODO: Update this as the objects changes. We expect to change the slack in the RouteNode and to add a way of keeping track of the transfers
+	 * Makes a copy of the current solution. The routes are shared by both solutions (copy-on-write): a route is 
+	 * only copied when one of the solutions modifies it (see {@link #getMutableRoute(int)}). The requests and 
+	 * lists are copied, so they can be modified freely.
 	 * 
 	 * @return a copy of this solution object
 	 */
 	public Solution copy() {
 		Solution next = new Solution(this.p);
-		next.nextFreeVehicleId = this.nextFreeVehicleId;
+		next.nextFreeVehicleId.set(this.nextFreeVehicleId.get());
 		
-		// Create solution requests
-		// we make this early so we can assign the correct RouteNodes to them as soon as we make those
-		// see below
-		for (Request r : p.requests) {
-			SolutionRequest solReq = new SolutionRequest(r);
+		// Create solution requests, these refer to the same RouteNodes
+		for (SolutionRequest sr : requests) {
+			SolutionRequest solReq = new SolutionRequest(sr.associatedRequest);
+			solReq.pickup = sr.pickup;
+			solReq.dropoff = sr.dropoff;
+			solReq.transferPickup = sr.transferPickup;
+			solReq.transferDropoff = sr.transferDropoff;
 			next.requests.add(solReq);
 		}
 		
@@ -308,16 +469,34 @@ public class Solution {
 		next.openTransfers.addAll(openTransfers);
 		next.closedTransfers.addAll(closedTransfers);
 		
-		// copy routes
-		for (int routeIndex = 0; routeIndex < routes.size(); routeIndex++) {
-			Route origRoute = routes.get(routeIndex);
-			Route copyRoute = origRoute.copy();
-			next.routes.add(copyRoute);
-			next.updateReferencesOfRoute(routeIndex);
+		// share routes
+		for (Route r : routes) {
+			r.share();
+			next.routes.add(r);
 		}
 		return next;
 	}
 	
+	/**
+	 * Returns the route at the given index such that it can be modified. If the route is shared with other 
+	 * solutions, it is replaced by a copy first and the requests are updated to refer to the copied nodes.
+	 * Always use this before modifying a route or its nodes in place.
+	 * 
+	 * @param routeIndex the index of the route
+	 * @return the route at the index, owned by this solution
+	 */
+	public Route getMutableRoute(int routeIndex) {
+		Route r = routes.get(routeIndex);
+		if (!r.claim(this)) {
+			record(JournalEntryType.ROUTE_SET, routeIndex, r);
+			r = r.copy();
+			r.claim(this);
+			routes.set(routeIndex, r);
+			updateReferencesOfRoute(routeIndex);
+		}
+		return r;
+	}
+	
 	public boolean isMaxRideSatisfied() {
 		for (SolutionRequest sr : this.requests) {
 			if (sr.pickup == null || sr.dropoff == null) {
@@ -424,6 +603,52 @@ public class Solution {
 	public boolean isFeasible() {
 		return calcTightWindows();
 	}
+	
+	/**
+	 * Checks whether a single route is feasible, by calculating the tight windows of only this route. This is only 
+	 * valid if the route is not coupled to other routes by transfers, since those routes are not considered.
+	 * 
+	 * @param routeIndex the index of the route
+	 * @return true if the route is feasible
+	 */
+	public boolean isRouteFeasible(int routeIndex) {
+		return calcTightWindows(Collections.singletonList(getMutableRoute(routeIndex)));
+	}
+	
+	/**
+	 * Checks whether a route that is not part of this solution would be feasible in place of one of its routes, e.g.
+	 * a route with an insertion. Neither route may be coupled to other routes by transfers. Only the windows of the
+	 * given route are calculated, the solution itself is not changed. 
+	 * 
+	 * @param route the route to check, which is not used by any solution
+	 * @return true if the route is feasible
+	 */
+	public boolean isRouteFeasible(Route route) {
+		// the requests refer to the nodes of the route during the calculation
+		RouteNode[] oldPickups = new RouteNode[route.size()];
+		RouteNode[] oldDropoffs = new RouteNode[route.size()];
+		for (int k = 0; k < route.size(); k++) {
+			RouteNode rn = route.get(k);
+			SolutionRequest sr = requests.get(rn.requestId - 1);
+			oldPickups[k] = sr.pickup;
+			oldDropoffs[k] = sr.dropoff;
+		}
+		for (RouteNode rn : route) {
+			SolutionRequest sr = requests.get(rn.requestId - 1);
+			if (rn.type == RouteNodeType.PICKUP) {
+				sr.pickup = rn;
+			} else if (rn.type == RouteNodeType.DROPOFF) {
+				sr.dropoff = rn;
+			}
+		}
+		boolean isFeasible = calcTightWindows(Collections.singletonList(route));
+		for (int k = 0; k < route.size(); k++) {
+			SolutionRequest sr = requests.get(route.get(k).requestId - 1);
+			sr.pickup = oldPickups[k];
+			sr.dropoff = oldDropoffs[k];
+		}
+		return isFeasible;
+	}
 
 	
 	/*
@@ -431,446 +656,116 @@ public class Solution {
 	 */
 	
 	public boolean calcTightWindows() {
-		if (npassL() && npassE()) {
-			tightWindowsToSolution();
-			clearReferences();
-			return true;
+		List<List<Route>> components = getComponents(incrementalWindows);
+		if (parallelWindows && components.size() > 1) {
+			// the components are independent, so they can be calculated at the same time (on the common ForkJoinPool)
+			return components.parallelStream().allMatch(this::calcTightWindows);
 		}
-		return false;
-	}
-	
-	private void clearReferences() {
-		for (Route r : routes) {
-			for (RouteNode rn : r) {
-				rn.parent = null;
-				rn.set = null;
-				rn.scannedFrom = null;
-				rn.prevInRoute = null;
+		for (List<Route> component : components) {
+			if (!calcTightWindows(component)) {
+				return false;
 			}
 		}
+		return true;
 	}
-
-
-	private void tightWindowsToSolution() {
-		for (Route r : routes) {
-			RouteNode prev = null;
-			for (RouteNode rn : r) {
-				rn.setStartOfS(rn.tightE);
-				if (prev == null) {
-					rn.setArrival(rn.tightE);
-				} else {
-					rn.setArrival(prev.getDeparture() + p.distanceBetween(rn.associatedNode, prev.associatedNode));
-				}
-				prev = rn;
+	
+	// calculates the tight windows of the given routes, which must contain all routes they are coupled to by transfers
+	private boolean calcTightWindows(List<Route> routes) {
+		if (new TightWindowCalculator(this, routes).calculate()) {
+			tightWindowsToSolution(routes);
+			for (Route r : routes) {
+				r.setWindowsUnchanged();
 			}
+			return true;
 		}
+		return false;
 	}
 	
-//	public boolean hasNegCycle(RouteNode v, RouteNode w, double dist, List<RouteNode> L) {
-//		w.tightL = dist;
-//		w.parent = v;
-//		w.set = L;
-//		L.add(w);
-//		RouteNode x = w.before;
-//		w.before = null;
-//		RouteNode y = w.after;
-//		while (y.parent.before == null) {
-//			if (y == v) {
-//				return true;
-//			} else {
-//				y.before = null;
-//				y = y.after;
-//			}
-//		}
-//		x.after = y;
-//		y.before = x;
-//		w.after = v.after;
-//		w.after.before = w;
-//		w.before = v;
-//		v.after = w;
-//		return false;
-//	}
-//	
-//	public boolean tarjanL() {
-//		LinkedList<RouteNode> L = new LinkedList<>();
-//		List<RouteNode> S = new ArrayList<>();
-//		List<RouteNode> U = new ArrayList<>();
-//		RouteNode zero = new RouteNode(null, null, 0, 0);
-//		RouteNode root = new RouteNode(null, null, 0, 0);
-//		zero.parent = null;
-//		zero.tightL = ARBIT_HIGH;
-//		zero.set = L;
-//		zero.before = root;
-//		zero.after = root;
-//		root.before = zero;
-//		root.after = zero;
-//		L.add(zero);
-//		
-//		for (Route r : routes) {
-//			RouteNode prev = null;
-//			for (RouteNode rn : r) {
-//				rn.parent = null;
-//				rn.tightL = ARBIT_HIGH;
-//				rn.set = U;
-//				//U.add(rn);
-//				rn.before = null;
-//				rn.after = null;
-//				rn.prevInRoute = prev;
-//				prev = rn;
-//			}
-//		}
-//		
-//		while (L.size() > 0) {
-//			RouteNode v = L.pop();
-//			v.set = null;
-//			if (v == zero) {
-//				// edges of zero are l
-//				for (Route r : routes) {
-//					for (RouteNode w : r) {
-//						if (!w.isTransfer()) {
-//							double dist = v.tightL + w.associatedNode.l;
-//							if (dist < w.tightL) {
-//								if (hasNegCycle(v, w, dist, L)) {
-//									return false;
-//								} 
-//								v.set = S;
-//							}
-//						}
-//					}
-//				}
-//			}
-//			// pickup has outgoing max ride time
-//			if (v.type == RouteNodeType.PICKUP) {	
-//				SolutionRequest sr = requests.get(v.requestId - 1);
-//				RouteNode w = sr.dropoff;
-//				if (w != null) {
-//					double dist = v.tightL + sr.L + v.associatedNode.s;
-//					if (dist < w.tightL) {	
-//						if (hasNegCycle(v, w, dist, L)) {
-//							return false;
-//						} 
-//						v.set = S;
-//					}
-//				}
-//			}
-//			// transfer pickup may hawe associated transfer dropoff
-//			if (v.type == RouteNodeType.TRANSFER_PICKUP) {
-//				SolutionRequest sr = requests.get(v.requestId - 1);
-//				RouteNode w = sr.transferDropoff;
-//				if (w != null) {
-//					double dist = v.tightL - w.associatedNode.s;
-//					if (dist < w.tightL) {
-//						if (hasNegCycle(v, w, dist, L)) {
-//							return false;
-//						} 
-//						v.set = S;
-//					}
-//				}
-//			}
-//			// precedence constraint
-//			if (v.prevInRoute != null) {	
-//				RouteNode w = v.prevInRoute;
-//				double dist = v.tightL - p.distanceBetween(v.associatedNode, w.associatedNode) - w.associatedNode.s;
-//				if (dist < w.tightL) {
-//					if (hasNegCycle(v, w, dist, L)) {
-//						return false;
-//					} 
-//					v.set = S;
-//				}
-//			}
-//			// earliest starting time constraint
-//			if (!v.isTransfer() && v != zero) {
-//				RouteNode w = zero;
-//				double dist = v.tightL - v.associatedNode.e;
-//				if (dist < w.tightL) {
-//					// this implies a negatiwe cycle
-//					if (hasNegCycle(v, w, dist, L)) {
-//						return false;
-//					} 
-//					v.set = S;
-//					return false;
-//				}
-//			}
-//		}
-//		return true;
-//	}
-	
-	public boolean npassL() {
-		//setup
-		int scansSinceLast = 0;
-		LinkedList<RouteNode> A = new LinkedList<>();
-		List<RouteNode> B = new ArrayList<>();
-		RouteNode zero = new RouteNode(null, null, 0, 0);
-		zero.parent = null;
-		zero.tightL = 0;
-		zero.set = B;
-		B.add(zero);
-		
-		for (Route r : routes) {
-			RouteNode prev = null;
-			for (RouteNode rn : r) {
-				rn.parent = null;
-				rn.tightL = ARBIT_HIGH;
-				rn.set = B;
-				B.add(rn);
-				rn.prevInRoute = prev;
-				prev = rn;
+	/*
+	 * Routes only interact through requests that are served by multiple routes, i.e. transfers. Only paths through 
+	 * zero connect the other routes, so the windows of a group of coupled routes can be calculated separately.
+	 * Groups the routes into connected components and returns all components or only those that contain a changed route.
+	 * The windows of these routes are about to be updated, so they are made mutable.
+	 */
+	private List<List<Route>> getComponents(boolean onlyChanged) {
+		int[] component = new int[routes.size()];
+		for (int i = 0; i < component.length; i++) {
+			component[i] = i;
+		}
+		// couple each route to the first route that serves the same request
+		int[] routeOfRequest = new int[requests.size()];
+		Arrays.fill(routeOfRequest, -1);
+		for (int i = 0; i < routes.size(); i++) {
+			for (RouteNode rn : routes.get(i)) {
+				int j = routeOfRequest[rn.requestId - 1];
+				if (j == -1) {
+					routeOfRequest[rn.requestId - 1] = i;
+				} else if (j != i) {
+					component[findComponent(component, i)] = findComponent(component, j);
+				}
 			}
 		}
-		do {
-			// asume a = empty
-			// move all of B to A
-			for (ListIterator<RouteNode> iter = B.listIterator(); iter.hasNext(); ) {
-				RouteNode next = iter.next();
-				A.add(next);
-				iter.remove();
-				next.set = A;
-			}
-			do {
-				RouteNode u = A.remove();
-				u.set = null;
-				scansSinceLast++;
-				// check all outgoing edges
-				if (u == zero) {
-					// edges of zero are l
-					for (Route r : routes) {
-						for (RouteNode v : r) {
-							if (!v.isTransfer()) {
-								double dist = u.tightL + v.associatedNode.l;
-								if (dist < v.tightL) {
-									updateNodeL(u, v, dist, B);
-								}
-							}
-						}
-					}
-				}
-				// pickup has outgoing max ride time
-				if (u.type == RouteNodeType.PICKUP) {	
-					SolutionRequest sr = requests.get(u.requestId - 1);
-					RouteNode v = sr.dropoff;
-					if (v != null) {
-						double dist = u.tightL + sr.L + u.associatedNode.s;
-						if (dist < v.tightL) {	
-							updateNodeL(u, v, dist, B);
-						}
-					}
-				}
-				// transfer pickup may have associated transfer dropoff
-				if (u.type == RouteNodeType.TRANSFER_PICKUP) {
-					SolutionRequest sr = requests.get(u.requestId - 1);
-					RouteNode v = sr.transferDropoff;
-					if (v != null) {
-						double dist = u.tightL - v.associatedNode.s;
-						if (dist < v.tightL) {
-							updateNodeL(u, v, dist, B);
-						}
-					}
-				}
-				// precedence constraint
-				if (u.prevInRoute != null) {	
-					RouteNode v = u.prevInRoute;
-					double dist = u.tightL - p.distanceBetween(u.associatedNode, v.associatedNode) - v.associatedNode.s;
-					if (dist < v.tightL) {
-						updateNodeL(u, v, dist, B);
-					}
-				}
-				// earliest starting time constraint
-				if (!u.isTransfer() && u != zero) {
-					RouteNode v = zero;
-					double dist = u.tightL - u.associatedNode.e;
-					if (dist < v.tightL) {
-						// this implies a negative cycle
-						updateNodeL(u, v, dist, B);
-						return false;
-					}
-				}
-			} while (A.size() > 0);
-			// end of a pass, check cycle detection if long ago or last scan
-			if (scansSinceLast > routes.size() * 2 || B.size() == 0) {
-				if (hasNegativeCycle(zero)) {
-					return false;
-				} else {
-					scansSinceLast = 0;
-				}
+		boolean[] changed = new boolean[routes.size()];
+		for (int i = 0; i < routes.size(); i++) {
+			if (!onlyChanged || routes.get(i).hasWindowsChanged()) {
+				changed[findComponent(component, i)] = true;
 			}
-			
-		} while (B.size() > 0);
-		return true;
-	}
-		
-	private void updateNodeL(RouteNode u, RouteNode v, double dist, List<RouteNode> B) {
-		v.tightL = dist;
-		v.parent = u;
-		if (v.set == null) {
-			B.add(v);
-			v.set = B;
 		}
-	}
-	
-	public boolean npassE() {
-		for (Route r1 : routes) {
-			for (RouteNode s : r1) {
-				int scansSinceLast = 0;
-				LinkedList<RouteNode> A = new LinkedList<>();
-				List<RouteNode> B = new ArrayList<>();
-				
-				B.add(s);
-				
-				RouteNode zero = new RouteNode(null, null, 0, 0);
-				zero.parent = null;
-				zero.negativeTightE = 0;
-				zero.set = B;
-				B.add(zero);
-				
-				for (Route r : routes) {
-					RouteNode prev = null;
-					for (RouteNode rn : r) {
-						rn.parent = null;
-						rn.negativeTightE = ARBIT_HIGH;
-						rn.set = B;
-						if (rn != s) {
-							B.add(rn);
-						}
-						rn.prevInRoute = prev;
-						prev = rn;
-					}
+		List<List<Route>> changedComponents = new ArrayList<>();
+		int[] index = new int[routes.size()];
+		Arrays.fill(index, -1);
+		for (int i = 0; i < routes.size(); i++) {
+			int root = findComponent(component, i);
+			if (changed[root]) {
+				if (index[root] == -1) {
+					index[root] = changedComponents.size();
+					changedComponents.add(new ArrayList<>());
 				}
-				s.negativeTightE = 0;
-				do {
-					// asume a = empty
-					// move all of B to A
-					for (RouteNode rn : B) {
-						A.add(rn);
-						rn.set = A;
-					}
-					B.clear();
-					do {
-						RouteNode u = A.remove();
-						u.set = null;
-						scansSinceLast++;
-						// check all outgoing edges
-						if (u == zero) {
-							// edges of zero are l
-							for (Route r : routes) {
-								for (RouteNode v : r) {
-									if (!v.isTransfer()) {
-										double dist = u.negativeTightE + v.associatedNode.l;
-										if (dist < v.negativeTightE) {
-											updateNodeE(u, v, dist, B);
-										}
-									}
-								}
-							}
-						}
-						// pickup has outgoing max ride time
-						if (u.type == RouteNodeType.PICKUP) {	
-							SolutionRequest sr = requests.get(u.requestId - 1);
-							RouteNode v = sr.dropoff;
-							if (v != null) { // solutions can be partial, so might not be a dropoff yet
-								double dist = u.negativeTightE + sr.L + u.associatedNode.s;
-								if (dist < v.negativeTightE) {
-									updateNodeE(u, v, dist, B);
-								}
-							}
-						}
-						// transfer pickup may have associated transfer dropoff
-						if (u.type == RouteNodeType.TRANSFER_PICKUP) {
-							SolutionRequest sr = requests.get(u.requestId - 1);
-							RouteNode v = sr.transferDropoff;
-							if (v != null) {
-								double dist = u.negativeTightE - v.associatedNode.s;
-								if (dist < v.negativeTightE) {
-									updateNodeE(u, v, dist, B);
-								}
-							}
-						}
-						// precedence constraint
-						if (u.prevInRoute != null) {	
-							RouteNode v = u.prevInRoute;
-							double dist = u.negativeTightE - p.distanceBetween(u.associatedNode, v.associatedNode) - v.associatedNode.s;
-							if (dist < v.negativeTightE) {
-								updateNodeE(u, v, dist, B);
-							}
-						}
-						// earliest starting time constraint
-						if (! u.isTransfer() && u != zero) {
-							RouteNode v = zero;
-							double dist = u.negativeTightE - u.associatedNode.e;
-							if (dist < v.negativeTightE) {
-								updateNodeE(u, v, dist, B);
-							}
-						}
-					} while (A.size() > 0);
-					// end of a pass, check cycle detection if long ago or last scan
-					if (scansSinceLast > routes.size() * 2 || B.size() == 0) {
-						if (hasNegativeCycle(zero)) {
-							return false;
-						} else {
-							scansSinceLast = 0;
-						}
-					}
-				} while (B.size() > 0);
-				s.tightE = -zero.negativeTightE;
-				B = null;
-				A = null;
+				changedComponents.get(index[root]).add(getMutableRoute(i));
 			}
 		}
-		return true;
+		return changedComponents;
 	}
 	
-	private void updateNodeE(RouteNode u, RouteNode v, double dist, List<RouteNode> B) {
-		v.negativeTightE = dist;
-		v.parent = u;
-		if (v.set == null) {
-			B.add(v);
-			v.set = B;
+	private static int findComponent(int[] component, int i) {
+		while (component[i] != i) {
+			component[i] = component[component[i]];
+			i = component[i];
 		}
+		return i;
 	}
-
-	private boolean hasNegativeCycle(RouteNode zero) {
-		// setup
-		for (Route r : routes) {
-			for (RouteNode v : r) {
-				v.scannedFrom = null;
-			}
-		}
-		zero.scannedFrom = null;
-		// check zero separately
-		if (hasWalkToRootCycle(zero)) {
-			return true;
-		}
-
+	
+	private void tightWindowsToSolution(List<Route> routes) {
 		for (Route r : routes) {
-			for (RouteNode v : r) {
-				if (hasWalkToRootCycle(v)) {
-					return true;
+			RouteNode prev = null;
+			for (RouteNode rn : r) {
+				rn.setStartOfS(rn.tightE);
+				if (prev == null) {
+					rn.setArrival(rn.tightE);
+				} else {
+					rn.setArrival(prev.getDeparture() + p.distanceBetween(rn.associatedNode, prev.associatedNode));
 				}
+				prev = rn;
 			}
 		}
-		return false;
-	}
-	
-	private boolean hasWalkToRootCycle(RouteNode v) {
-		RouteNode p = v;
-		while (p != null) {
-			if (p.scannedFrom == null) {
-				p.scannedFrom = v;
-				p = p.parent;
-			} else if (p.scannedFrom == v && v.scannedFrom != v) {
-				return true;
-			} else {
-				break;
-			}
+		for (Route r : routes) {
+			r.updateSlack(this);
 		}
-		return false;
 	}
 	
 	public void setRoute(int routeIndex, Route route) {
+		// the windows of the route may have been calculated in another solution
+		route.setWindowsChanged();
+		if (!route.claim(this)) {
+			// the route is also used by another solution
+			route.share();
+		}
 		if (routeIndex == -1) {
 			routes.add(route);
 			routeIndex = routes.size() - 1;
+			record(JournalEntryType.ROUTE_ADD, routeIndex, null);
 		} else {
-			routes.set(routeIndex, route);
+			record(JournalEntryType.ROUTE_SET, routeIndex, routes.set(routeIndex, route));
 		}
 		updateReferencesOfRoute(routeIndex);
 	}
@@ -882,6 +777,7 @@ public class Solution {
 	private void updateReferencesOfRoute(int routeIndex) {
 		for (RouteNode rn : routes.get(routeIndex)) {
 			SolutionRequest sr = requests.get(rn.requestId - 1);
+			record(sr);
 			switch (rn.type) {
 			case PICKUP:
 				sr.pickup = rn;
@@ -900,9 +796,6 @@ public class Solution {
 	}
 	
 	public void destroy() {
-		for (Route r : routes){
-			r.destroy();
-		}
 		for (SolutionRequest sr : requests) {
 			sr.destroy();
 		}
@@ -912,5 +805,21 @@ public class Solution {
 		requests = null;
 	}
 	
-	//http://www.cs.princeton.edu/courses/archive/spr11/cos423/Lectures/ShortestPaths.pdf
+	private enum JournalEntryType {
+		ROUTE_SET, ROUTE_ADD, ROUTE_REMOVE, REQUEST, TRANSFER_OPEN, TRANSFER_CLOSE
+	}
+	
+	// a single change to the solution, with what is needed to undo it
+	private static class JournalEntry {
+		final JournalEntryType type;
+		int index; // of the route or transfer
+		Route route; // the route that was replaced or removed
+		Node transfer;
+		SolutionRequest request;
+		RouteNode pickup, dropoff, transferPickup, transferDropoff; // the old references of the request
+		
+		JournalEntry(JournalEntryType type) {
+			this.type = type;
+		}
+	}
 }
@@ -0,0 +1,280 @@
+package solution;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import problem.DistanceMatrix;
+
+/**
+ * Calculates the tight time windows (Masson et al. 2014) of a group of routes that are coupled by transfers.
+ * The latest times are shortest paths from zero in the constraint graph and the earliest times are (minus) the
+ * shortest paths from the nodes to zero. Both are found with a label correcting algorithm that periodically
+ * checks for negative cycles.
+ *
+ * The state of the algorithm is kept in arrays indexed by node instead of in the RouteNodes themselves, so
+ * different groups of routes can be calculated concurrently.
+ *
+ * See http://www.cs.princeton.edu/courses/archive/spr11/cos423/Lectures/ShortestPaths.pdf
+ */
+class TightWindowCalculator {
+
+	private static final int ZERO = 0; // the index of the zero node, the route nodes follow in route order
+	private static final int NO_NODE = -1;
+
+	// in which set a node is during a pass
+	private static final byte NO_SET = 0;
+	private static final byte SET_A = 1;
+	private static final byte SET_B = 2;
+
+	private final Solution s;
+	private final List<Route> routes;
+	private final RouteNode[] nodes;
+	private final int n;
+
+	// the edges of the constraint graph, grouped by start node (out) and by end node (in)
+	// the reversed graph (in) is used to calculate the earliest times in a single pass
+	private int[] outStart, outEnd, inStart, inEnd;
+	private double[] outWeight, inWeight;
+
+	// scratch state of the label correcting algorithm
+	private final double[] dist;
+	private final int[] parent;
+	private final int[] scannedFrom;
+	private final byte[] set;
+	private final int[] A, B;
+
+	/**
+	 * @param s the solution the routes belong to
+	 * @param routes the routes, which must contain all routes they are coupled to by transfers
+	 */
+	TightWindowCalculator(Solution s, List<Route> routes) {
+		this.s = s;
+		this.routes = routes;
+		int size = 1;
+		for (Route r : routes) {
+			size += r.size();
+		}
+		this.n = size;
+		this.nodes = new RouteNode[n];
+		this.dist = new double[n];
+		this.parent = new int[n];
+		this.scannedFrom = new int[n];
+		this.set = new byte[n];
+		this.A = new int[n];
+		this.B = new int[n];
+		buildGraph();
+	}
+
+	/**
+	 * Calculates the tight windows and stores them in the route nodes. The nodes are not changed if the routes
+	 * are infeasible.
+	 *
+	 * @return true if the routes are feasible
+	 */
+	boolean calculate() {
+		if (!shortestPaths(ZERO, false)) {
+			return false;
+		}
+		double[] tightL = Arrays.copyOf(dist, n);
+		double[] tightE = new double[n];
+		if (Solution.singlePassEarliest) {
+			// shortest paths from zero in the reversed graph
+			if (!shortestPaths(ZERO, true)) {
+				return false;
+			}
+			for (int v = 1; v < n; v++) {
+				tightE[v] = Math.max(0, -dist[v]);
+			}
+		} else {
+			// the original implementation, which calculates the shortest path from each node to zero separately
+			for (int v = 1; v < n; v++) {
+				if (!shortestPaths(v, false)) {
+					return false;
+				}
+				tightE[v] = -dist[ZERO];
+			}
+		}
+		for (int v = 1; v < n; v++) {
+			nodes[v].tightL = tightL[v];
+			nodes[v].tightE = tightE[v];
+		}
+		return true;
+	}
+
+	private void buildGraph() {
+		Map<RouteNode, Integer> index = new IdentityHashMap<>();
+		int[] prevInRoute = new int[n];
+		int v = 1;
+		for (Route r : routes) {
+			int prev = NO_NODE;
+			for (RouteNode rn : r) {
+				nodes[v] = rn;
+				index.put(rn, v);
+				prevInRoute[v] = prev;
+				prev = v;
+				v++;
+			}
+		}
+		// every node has at most 2 edges to/from zero, 1 to its predecessor and 1 to its request partner
+		int[] from = new int[4 * n];
+		int[] to = new int[4 * n];
+		double[] weight = new double[4 * n];
+		DistanceMatrix distance = s.p.distanceMatrix;
+		int m = 0;
+		for (v = 1; v < n; v++) {
+			RouteNode rn = nodes[v];
+			int id = rn.associatedNode.id - 1;
+			if (!rn.isTransfer()) {
+				// latest starting time constraint
+				from[m] = ZERO;
+				to[m] = v;
+				weight[m++] = s.p.l[id];
+				// earliest starting time constraint
+				from[m] = v;
+				to[m] = ZERO;
+				weight[m++] = -s.p.e[id];
+			}
+			// pickup has outgoing max ride time
+			if (rn.type == RouteNodeType.PICKUP) {
+				SolutionRequest sr = s.requests.get(rn.requestId - 1);
+				Integer w = sr.dropoff == null ? null : index.get(sr.dropoff); // solutions can be partial
+				if (w != null) {
+					from[m] = v;
+					to[m] = w;
+					weight[m++] = s.p.maxRideTime[id] + s.p.s[id];
+				}
+			}
+			// transfer pickup may have associated transfer dropoff
+			if (rn.type == RouteNodeType.TRANSFER_PICKUP) {
+				SolutionRequest sr = s.requests.get(rn.requestId - 1);
+				Integer w = sr.transferDropoff == null ? null : index.get(sr.transferDropoff);
+				if (w != null) {
+					from[m] = v;
+					to[m] = w;
+					weight[m++] = -sr.transferDropoff.associatedNode.s;
+				}
+			}
+			// precedence constraint
+			if (prevInRoute[v] != NO_NODE) {
+				int prevId = nodes[prevInRoute[v]].associatedNode.id - 1;
+				from[m] = v;
+				to[m] = prevInRoute[v];
+				weight[m++] = -distance.get(id, prevId) - s.p.s[prevId];
+			}
+		}
+		outStart = new int[n + 1];
+		outEnd = new int[m];
+		outWeight = new double[m];
+		inStart = new int[n + 1];
+		inEnd = new int[m];
+		inWeight = new double[m];
+		group(from, to, weight, m, outStart, outEnd, outWeight);
+		group(to, from, weight, m, inStart, inEnd, inWeight);
+	}
+
+	// counting sort of the edges by start node, the edges of node v end up in [start[v], start[v+1])
+	private void group(int[] from, int[] to, double[] weight, int m, int[] start, int[] end, double[] w) {
+		for (int k = 0; k < m; k++) {
+			start[from[k] + 1]++;
+		}
+		for (int v = 0; v < n; v++) {
+			start[v + 1] += start[v];
+		}
+		int[] pos = Arrays.copyOf(start, n);
+		for (int k = 0; k < m; k++) {
+			int i = pos[from[k]]++;
+			end[i] = to[k];
+			w[i] = weight[k];
+		}
+	}
+
+	/*
+	 * Calculates the shortest paths from the source (and zero) to all nodes. Nodes that are updated during a
+	 * pass are scanned in the next pass. Returns false if there is a negative cycle.
+	 */
+	private boolean shortestPaths(int source, boolean reversed) {
+		int[] start = reversed ? inStart : outStart;
+		int[] end = reversed ? inEnd : outEnd;
+		double[] weight = reversed ? inWeight : outWeight;
+
+		// setup
+		Arrays.fill(dist, Solution.ARBIT_HIGH);
+		Arrays.fill(parent, NO_NODE);
+		dist[ZERO] = 0;
+		dist[source] = 0;
+		int sizeB = 0;
+		for (int v = 0; v < n; v++) {
+			B[sizeB++] = v;
+			set[v] = SET_B;
+		}
+		int scansSinceLast = 0;
+		do {
+			// move all of B to A
+			int sizeA = sizeB;
+			System.arraycopy(B, 0, A, 0, sizeB);
+			for (int i = 0; i < sizeA; i++) {
+				set[A[i]] = SET_A;
+			}
+			sizeB = 0;
+			for (int i = 0; i < sizeA; i++) {
+				int u = A[i];
+				set[u] = NO_SET;
+				scansSinceLast++;
+				for (int k = start[u]; k < start[u + 1]; k++) {
+					int v = end[k];
+					double d = dist[u] + weight[k];
+					// ignore improvements due to rounding errors, e.g. on zero length cycles when e = l
+					if (d < dist[v] - Solution.ROUND_ERR) {
+						dist[v] = d;
+						parent[v] = u;
+						if (v == ZERO && source == ZERO) {
+							// this implies a negative cycle
+							return false;
+						}
+						if (set[v] == NO_SET) {
+							B[sizeB++] = v;
+							set[v] = SET_B;
+						}
+					}
+				}
+			}
+			// end of a pass, check cycle detection if long ago or last scan
+			if (scansSinceLast > routes.size() * 2 || sizeB == 0) {
+				if (hasNegativeCycle()) {
+					return false;
+				} else {
+					scansSinceLast = 0;
+				}
+			}
+		} while (sizeB > 0);
+		return true;
+	}
+
+	// a cycle in the parent pointers implies a negative cycle
+	private boolean hasNegativeCycle() {
+		Arrays.fill(scannedFrom, NO_NODE);
+		for (int v = 0; v < n; v++) {
+			if (hasWalkToRootCycle(v)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean hasWalkToRootCycle(int v) {
+		int p = v;
+		while (p != NO_NODE) {
+			if (scannedFrom[p] == NO_NODE) {
+				scannedFrom[p] = v;
+				p = parent[p];
+			} else if (scannedFrom[p] == v) {
+				return true;
+			} else {
+				break;
+			}
+		}
+		return false;
+	}
+}